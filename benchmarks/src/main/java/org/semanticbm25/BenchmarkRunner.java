@@ -0,0 +1,27 @@
+package org.semanticbm25;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * This class runs the JMH benchmarks with the gc profiler (allocation rate and bytes per operation).
+ * It accepts the usual JMH command line options, e.g. "ScoringBenchmark -p documents=10000".
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(cmd)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
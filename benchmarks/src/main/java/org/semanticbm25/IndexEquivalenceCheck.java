@@ -0,0 +1,395 @@
+package org.semanticbm25;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class checks on the same synthetic corpus that
+ * 1. the index built by external sort (ExternalIndexBuilder, TestBM25.indexMemoryBudget > 0) has the rows of
+ * the index built by DocumentIndexWriter and the SQL of TestBM25.createBM25Database (documents, tf, idf, tfsem, idfsem);
+ * 2. every scoring path returns the BM25 scores computed here from the tables: TestBM25.computeBM25Scores,
+ * computeBM25ScoresBatch (two round trips per batch), computeBM25ScoresBatch with budgets per query (a query out of
+ * budget does not cut the others) and SnapshotSearcher (plain, batch, with budgets); the top 10 TopDocuments are
+ * the 10 best scores.
+ * The corpus and the word vectors are generated (SyntheticCorpus, fixed seed) and the database is a MemoryDatabase,
+ * so no PostgreSQL, model or corpus files are needed. It prints the largest differences and exits with status 1
+ * when one of them is over the tolerance.
+ *
+ * java -cp benchmarks/target/benchmarks.jar org.semanticbm25.IndexEquivalenceCheck [documents] [seed]
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class IndexEquivalenceCheck {
+    static int documents = 600;
+    static int vocabularySize = 2000;
+    static int dimension = 16;
+    static int topics = 40; //the word vectors are grouped around topic centers, so the words have semantic neighbors
+    static long memoryBudget = 64 << 10; //bytes, small so that the external sort spills many runs
+    static int queries = 40;
+    static double tolerance = 1e-9; //relative
+    static double snapshotTolerance = 1e-5; //relative, the snapshot keeps the length norms as floats
+    static int snapshotChunkBits = 7; //128 entries per mapped chunk, so that the postings and document ids span chunks
+    static int snapshotWriteBuffer = 64; //bytes, so that every section is flushed many times
+    static long[] postingsLimits = {0, 5, 50, 500, 5000}; //of the queries of a batch, 0 - no limit
+    static long rowNanos = 20_000; //the time of a row of the database in the time budget check
+    static long timeBudgetMillis = 100; //shorter than the batch with rowNanos
+    private static final int ALL = Integer.MAX_VALUE; //topK of the comparisons of all the scores
+    private static final int TOP = 10;
+
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws SQLException, IOException {
+        System.setProperty("semanticbm25.snapshot.chunkBits", String.valueOf(snapshotChunkBits));// Before IndexSnapshot is loaded
+        if (args.length > 0) documents = Integer.parseInt(args[0]);
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : SyntheticCorpus.SEED;
+        SyntheticCorpus corpus = new SyntheticCorpus(vocabularySize, SyntheticCorpus.ZIPF_EXPONENT, seed);
+        TestBM25.maxKNN = 10;
+        TestBM25.minSim = 0.6;
+        TestBM25.lsim = 0.8;
+
+        Path folder = Files.createTempDirectory("bm25-check");
+        try {
+            writeDocuments(corpus, folder);
+            TestBM25.fileFolderPath = folder.toString();
+            TestBM25.corpusFile = null;
+            EmbeddingMatrix embeddings = embeddings(corpus.random());
+
+            MemoryDatabase sql = new MemoryDatabase();
+            TestBM25.indexMemoryBudget = 0;
+            TestBM25.createBM25Database(embeddings, sql.connection());
+            MemoryDatabase external = new MemoryDatabase();
+            TestBM25.indexMemoryBudget = memoryBudget;
+            TestBM25.createBM25Database(embeddings, external.connection());
+            compareIndexes(sql, external);
+
+            compareScores(sql, corpus, folder.resolve("index.snapshot"));
+        } finally {
+            try (Stream<Path> files = Files.list(folder)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(folder);
+        }
+
+        if (!failures.isEmpty()) {
+            failures.forEach(failure -> System.err.println("FAILED: " + failure));
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    /**
+     * One file of token ids per document, as TestBM25.indexFiles reads them.
+     */
+    private static void writeDocuments(SyntheticCorpus corpus, Path folder) throws IOException {
+        for (int d = 0; d < documents; d++) {
+            int[] terms = corpus.document(20 + corpus.random().nextInt(80));
+            Files.writeString(folder.resolve("doc" + d + ".txt"),
+                    Arrays.stream(terms).mapToObj(String::valueOf).collect(Collectors.joining(" ")));
+        }
+    }
+
+    /**
+     * A vector for every term id: the center of its topic plus noise.
+     */
+    private static EmbeddingMatrix embeddings(Random random) {
+        float[][] centers = new float[topics][dimension];
+        for (float[] center : centers) {
+            for (int i = 0; i < dimension; i++) center[i] = (float) random.nextGaussian();
+        }
+        String[] words = new String[vocabularySize];
+        float[] data = new float[vocabularySize * dimension];
+        for (int w = 0; w < vocabularySize; w++) {
+            words[w] = String.valueOf(w);
+            float[] center = centers[random.nextInt(topics)];
+            for (int i = 0; i < dimension; i++) {
+                data[w * dimension + i] = center[i] + (float) (0.8 * random.nextGaussian());
+            }
+        }
+        return new EmbeddingMatrix(words, data, dimension);
+    }
+
+    private static void compareIndexes(MemoryDatabase sql, MemoryDatabase external) {
+        check("documents", sql.documents.equals(external.documents), sql.documents.size() + " documents");
+        compareColumn("idf", sql, external, 0);
+        compareColumn("idfsem", sql, external, 1);
+        comparePostings("tf", sql.tf, external.tf);
+        comparePostings("tfsem", sql.tfsem, external.tfsem);
+    }
+
+    private static void compareColumn(String name, MemoryDatabase sql, MemoryDatabase external, int column) {
+        double maxDiff = 0;
+        boolean same = sql.words.keySet().equals(external.words.keySet());
+        for (Map.Entry<Integer, Double[]> entry : sql.words.entrySet()) {
+            Double expected = entry.getValue()[column];
+            Double[] actual = external.words.get(entry.getKey());
+            if (actual == null || (expected == null) != (actual[column] == null)) {
+                same = false;
+            } else if (expected != null) {
+                maxDiff = Math.max(maxDiff, relativeDiff(expected, actual[column]));
+            }
+        }
+        check(name, same && maxDiff <= tolerance, sql.words.size() + " words, max relative difference " + maxDiff);
+    }
+
+    private static void comparePostings(String name, Map<Integer, TreeMap<String, Double>> expected, Map<Integer, TreeMap<String, Double>> actual) {
+        double maxDiff = 0;
+        long rows = 0;
+        boolean same = expected.keySet().equals(actual.keySet());
+        for (Map.Entry<Integer, TreeMap<String, Double>> entry : expected.entrySet()) {
+            Map<String, Double> actualRows = actual.getOrDefault(entry.getKey(), new TreeMap<>());
+            same &= entry.getValue().keySet().equals(actualRows.keySet());
+            for (Map.Entry<String, Double> row : entry.getValue().entrySet()) {
+                rows++;
+                maxDiff = Math.max(maxDiff, relativeDiff(row.getValue(), actualRows.getOrDefault(row.getKey(), Double.NaN)));
+            }
+        }
+        check(name, same && maxDiff <= tolerance, rows + " rows, max relative difference " + maxDiff);
+    }
+
+    private static void compareScores(MemoryDatabase db, SyntheticCorpus corpus, Path snapshotFile) throws SQLException, IOException {
+        Encoding encoding = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+        List<String> texts = new ArrayList<>();
+        for (int q = 0; q < queries; q++) {
+            IntArrayList terms = new IntArrayList();
+            for (int term : corpus.query(2 + q % 5)) terms.add(term);
+            texts.add(encoding.decode(terms));
+        }
+        Connection c = db.connection();
+        double k = TestBM25.BM25_k;
+        double b = TestBM25.BM25_b;
+        double avgDoclen = TestBM25.getAvgDoclen(c);
+        IndexSnapshot.writeBufferSize = snapshotWriteBuffer;
+        IndexSnapshot.write(c, snapshotFile, TestBM25.maxKNN, TestBM25.minSim, TestBM25.lsim, k, b);
+        IndexSnapshot snapshot = IndexSnapshot.open(snapshotFile, TestBM25.maxKNN, TestBM25.minSim, TestBM25.lsim);
+        snapshot.verify();
+        check("snapshot chunks", IndexSnapshot.CHUNK_BITS == snapshotChunkBits, IndexSnapshot.CHUNK_ENTRIES + " entries");
+        SnapshotSearcher searcher = new SnapshotSearcher(snapshot);
+
+        for (boolean semOn : new boolean[]{false, true}) {
+            String mode = semOn ? "semantic " : "";
+            List<Map<String, Double>> expected = new ArrayList<>();
+            for (String text : texts) {
+                expected.add(referenceScores(db, encoding, text, k, b, avgDoclen, semOn));
+            }
+            List<QueryBudget> unlimited = Collections.nCopies(texts.size(), QueryBudget.of(60_000, 0));
+
+            List<Map<String, Double>> single = new ArrayList<>();
+            for (String text : texts) {
+                single.add(scores(TestBM25.computeBM25Scores(encoding, text, c, k, b, avgDoclen, semOn, ALL)));
+            }
+            compareScores(mode + "computeBM25Scores", expected, single, tolerance);
+
+            long roundTrips = db.roundTrips;
+            List<TopDocuments> batch = TestBM25.computeBM25ScoresBatch(encoding, texts, c, k, b, avgDoclen, semOn, ALL);
+            compareResults(mode + "computeBM25ScoresBatch", expected, batch, tolerance);
+            check(mode + "computeBM25ScoresBatch round trips", db.roundTrips - roundTrips == 2, (db.roundTrips - roundTrips) + " for " + texts.size() + " queries");
+            compareTop(mode + "computeBM25ScoresBatch top " + TOP, expected,
+                    TestBM25.computeBM25ScoresBatch(encoding, texts, c, k, b, avgDoclen, semOn, TOP), tolerance);
+
+            roundTrips = db.roundTrips;
+            List<TopDocuments> budgeted = TestBM25.computeBM25ScoresBatch(encoding, texts, c, k, b, avgDoclen, semOn, unlimited, ALL);
+            compareResults(mode + "computeBM25ScoresBatch with budgets", expected, budgeted, tolerance);
+            check(mode + "computeBM25ScoresBatch with budgets round trips", db.roundTrips - roundTrips == 2, (db.roundTrips - roundTrips) + " for " + texts.size() + " queries");
+
+            // The first query may read one posting, the others are not cut by it
+            List<QueryBudget> mixed = new ArrayList<>(unlimited);
+            mixed.set(0, QueryBudget.of(0, 1));
+            List<TopDocuments> cut = TestBM25.computeBM25ScoresBatch(encoding, texts, c, k, b, avgDoclen, semOn, mixed, ALL);
+            check(mode + "budget of one query", cut.get(0).total() <= 1
+                            && cut.get(0).complete() == postings(db, encoding, texts.get(0), semOn) <= 1,
+                    cut.get(0).total() + " documents, complete " + cut.get(0).complete());
+            compareResults(mode + "other queries of the batch", expected.subList(1, expected.size()), cut.subList(1, cut.size()), tolerance);
+
+            // Every query has a postings limit of its own: in a batch it gets the result it gets alone
+            List<QueryBudget> limits = new ArrayList<>();
+            for (int q = 0; q < texts.size(); q++) {
+                limits.add(QueryBudget.of(60_000, postingsLimits[q % postingsLimits.length]));
+            }
+            List<TopDocuments> alone = new ArrayList<>();
+            List<TopDocuments> snapshotAlone = new ArrayList<>();
+            for (int q = 0; q < texts.size(); q++) {
+                alone.add(TestBM25.computeBM25Scores(encoding, texts.get(q), c, k, b, avgDoclen, semOn, limits.get(q), ALL));
+                snapshotAlone.add(searcher.computeBM25Scores(encoding, texts.get(q), k, b, semOn, limits.get(q), ALL));
+            }
+            checkLimits(mode + "postings limits of a batch", db, encoding, texts, semOn, limits, alone,
+                    TestBM25.computeBM25ScoresBatch(encoding, texts, c, k, b, avgDoclen, semOn, limits, ALL));
+            checkLimits(mode + "SnapshotSearcher postings limits of a batch", db, encoding, texts, semOn, limits, snapshotAlone,
+                    searcher.computeBM25ScoresBatch(encoding, texts, k, b, semOn, limits, ALL));
+
+            // A time budget shorter than the query: the postings streamed before the deadline are scored
+            db.rowNanos = rowNanos;
+            List<QueryBudget> time = Collections.nCopies(texts.size(), QueryBudget.of(timeBudgetMillis, 0));
+            List<TopDocuments> late = TestBM25.computeBM25ScoresBatch(encoding, texts, c, k, b, avgDoclen, semOn, time, ALL);
+            db.rowNanos = 0;
+            checkPartial(mode + "time budget of a batch", expected, late);
+
+            List<Map<String, Double>> snapshotScores = new ArrayList<>();
+            for (String text : texts) {
+                snapshotScores.add(scores(searcher.computeBM25Scores(encoding, text, k, b, semOn, ALL)));
+            }
+            compareScores(mode + "SnapshotSearcher.computeBM25Scores", expected, snapshotScores, snapshotTolerance);
+            compareResults(mode + "SnapshotSearcher.computeBM25ScoresBatch", expected,
+                    searcher.computeBM25ScoresBatch(encoding, texts, k, b, semOn, ALL), snapshotTolerance);
+            compareTop(mode + "SnapshotSearcher.computeBM25ScoresBatch top " + TOP, expected,
+                    searcher.computeBM25ScoresBatch(encoding, texts, k, b, semOn, TOP), snapshotTolerance);
+            compareResults(mode + "SnapshotSearcher.computeBM25ScoresBatch with budgets", expected,
+                    searcher.computeBM25ScoresBatch(encoding, texts, k, b, semOn, unlimited, ALL), snapshotTolerance);
+        }
+    }
+
+    /**
+     * The BM25 scores from the tables: idf * ((tf * (k + 1)) / tf + norm) of every distinct token of the query
+     * (the idf column also for the semantic scores, as computeBM25Scores).
+     */
+    private static Map<String, Double> referenceScores(MemoryDatabase db, Encoding encoding, String text, double k, double b, double avgDoclen, boolean semOn) {
+        Map<String, Double> scores = new HashMap<>();
+        for (int token : new HashSet<>(encoding.encode(text).boxed())) {
+            Double[] idf = db.words.get(token);
+            if (idf == null) continue;
+            double wordIdf = idf[0] == null ? 0 : idf[0];
+            (semOn ? db.tfsem : db.tf).getOrDefault(token, new TreeMap<>()).forEach((id, tf) -> {
+                double norm = k * (1 - b + (b * (db.documents.get(id) / avgDoclen)));
+                scores.merge(id, wordIdf * ((tf * (k + 1)) / tf + norm), Double::sum);
+            });
+        }
+        return scores;
+    }
+
+    /**
+     * The number of postings of the words of a query.
+     */
+    private static long postings(MemoryDatabase db, Encoding encoding, String text, boolean semOn) {
+        long postings = 0;
+        for (int token : new HashSet<>(encoding.encode(text).boxed())) {
+            if (db.words.containsKey(token)) {
+                postings += (semOn ? db.tfsem : db.tf).getOrDefault(token, new TreeMap<>()).size();
+            }
+        }
+        return postings;
+    }
+
+    /**
+     * A query of a batch with a postings limit is complete when its words have no more postings than the limit,
+     * and has the scores it has alone.
+     */
+    private static void checkLimits(String name, MemoryDatabase db, Encoding encoding, List<String> texts, boolean semOn,
+                                    List<QueryBudget> limits, List<TopDocuments> alone, List<TopDocuments> batch) {
+        int incomplete = 0;
+        boolean same = true;
+        for (int q = 0; q < texts.size(); q++) {
+            boolean complete = postings(db, encoding, texts.get(q), semOn) <= limits.get(q).maxPostings();
+            same &= batch.get(q).complete() == complete && alone.get(q).complete() == complete
+                    && scores(batch.get(q)).equals(scores(alone.get(q)));
+            if (!complete) incomplete++;
+        }
+        check(name, same, texts.size() + " queries, " + incomplete + " cut by their limit");
+    }
+
+    /**
+     * The queries cut by a time budget have a part of their scores: some of the documents,
+     * no score above the full one.
+     */
+    private static void checkPartial(String name, List<Map<String, Double>> expected, List<TopDocuments> actual) {
+        int incomplete = 0;
+        int partial = 0;
+        boolean valid = true;
+        for (int q = 0; q < expected.size(); q++) {
+            Map<String, Double> scores = scores(actual.get(q));
+            for (Map.Entry<String, Double> entry : scores.entrySet()) {
+                Double score = expected.get(q).get(entry.getKey());
+                valid &= score != null && entry.getValue() <= score * (1 + tolerance);
+            }
+            if (actual.get(q).complete()) {
+                valid &= scores.keySet().equals(expected.get(q).keySet());
+            } else {
+                incomplete++;
+                if (!scores.isEmpty()) partial++;
+            }
+        }
+        check(name, valid && incomplete > 0 && partial > 0, incomplete + " queries out of time, " + partial + " of them with partial scores");
+    }
+
+    private static void compareResults(String name, List<Map<String, Double>> expected, List<TopDocuments> actual, double tolerance) {
+        List<Map<String, Double>> scores = new ArrayList<>();
+        boolean complete = true;
+        for (TopDocuments top : actual) {
+            scores.add(scores(top));
+            complete &= top.complete();
+        }
+        check(name + " complete", complete, actual.size() + " queries");
+        compareScores(name, expected, scores, tolerance);
+    }
+
+    /**
+     * The top documents of every query have the largest scores, in descending order, and total is the number
+     * of documents the query matches.
+     */
+    private static void compareTop(String name, List<Map<String, Double>> expected, List<TopDocuments> actual, double tolerance) {
+        double maxDiff = 0;
+        boolean same = expected.size() == actual.size();
+        for (int q = 0; same && q < expected.size(); q++) {
+            TopDocuments top = actual.get(q);
+            List<Double> best = new ArrayList<>(expected.get(q).values());
+            best.sort(Collections.reverseOrder());
+            same = top.size() == Math.min(TOP, best.size()) && top.total() == best.size();
+            for (int i = 0; same && i < top.size(); i++) {
+                maxDiff = Math.max(maxDiff, relativeDiff(best.get(i), top.score(i)));
+                maxDiff = Math.max(maxDiff, relativeDiff(expected.get(q).getOrDefault(top.id(i), Double.NaN), top.score(i)));
+            }
+        }
+        check(name, same && maxDiff <= tolerance, actual.size() + " queries, max relative difference " + maxDiff);
+    }
+
+    /**
+     * The scores of the returned documents by id.
+     */
+    private static Map<String, Double> scores(TopDocuments top) {
+        Map<String, Double> scores = new HashMap<>();
+        for (int i = 0; i < top.size(); i++) {
+            scores.put(top.id(i), top.score(i));
+        }
+        return scores;
+    }
+
+    private static void compareScores(String name, List<Map<String, Double>> expected, List<Map<String, Double>> actual, double tolerance) {
+        double maxDiff = 0;
+        boolean same = expected.size() == actual.size();
+        long documents = 0;
+        for (int q = 0; same && q < expected.size(); q++) {
+            same = expected.get(q).keySet().equals(actual.get(q).keySet());
+            for (Map.Entry<String, Double> entry : expected.get(q).entrySet()) {
+                documents++;
+                maxDiff = Math.max(maxDiff, relativeDiff(entry.getValue(), actual.get(q).getOrDefault(entry.getKey(), Double.NaN)));
+            }
+        }
+        check(name, same && maxDiff <= tolerance, documents + " scores, max relative difference " + maxDiff);
+    }
+
+    private static double relativeDiff(double expected, double actual) {
+        if (Double.isNaN(actual)) return Double.POSITIVE_INFINITY;
+        return Math.abs(expected - actual) / Math.max(1e-12, Math.abs(expected));
+    }
+
+    private static void check(String name, boolean passed, String details) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + name + ": " + details);
+        if (!passed) {
+            failures.add(name + ": " + details);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.semanticbm25;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * This class is the former BM25 scoring of TestBM25.computeBM25Scores, kept as the baseline of ScoringBenchmark:
+ * a list of (word, tf, idf) values per document id, scored document by document, into a map by document id
+ * that is ranked by sorting all the entries (rankDocuments, the former TestBM25 ranking) or with a heap of
+ * entries (topScores, the former SearchServer selection). The search now accumulates the scores in a ScoringContext
+ * and selects the TopDocuments by document ordinal; the weights of both are the same.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+final class ListScoring {
+
+    private ListScoring() {
+    }
+
+    /**
+     * The BM25 weight of every document from its (tf, idf) list and length (getBM25WeightForDoc).
+     */
+    static Map<String, Double> scoreDocuments(Map<String, List<TFIDFValue>> docTfIdfMap, Map<String, Integer> docLengths, double k, double b, double avg_doclen) {
+        Map<String, Double> bm25Scores = new HashMap<>();
+        for (var entry : docTfIdfMap.entrySet()) {
+            bm25Scores.put(entry.getKey(), getBM25WeightForDoc(entry.getValue(), k, b, avg_doclen, docLengths.getOrDefault(entry.getKey(), 1)));
+        }
+        return bm25Scores;
+    }
+
+    static double getBM25WeightForDoc(List<TFIDFValue> tfidfList, double k, double b, double avDocLen, double docLen) {
+        double sum = 0;
+        for (TFIDFValue tfidf : tfidfList) {
+            sum += tfidf.idf * ((tfidf.tf * (k + 1)) / tfidf.tf + (k * (1 - b + (b * (docLen / avDocLen)))));
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the ids of the limit best documents in descending order of the score.
+     */
+    static ArrayList<String> rankDocuments(Map<String, Double> scores, int limit) {
+        return scores.entrySet().stream()
+                .sorted((entry1, entry2) -> Double.compare(entry2.getValue(), entry1.getValue()))
+                .limit(limit)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    /**
+     * Selects the k best documents with a bounded min-heap instead of sorting all scored documents.
+     */
+    static List<Map.Entry<String, Double>> topScores(Map<String, Double> scores, int k) {
+        if (k <= 0) return Collections.emptyList();
+        PriorityQueue<Map.Entry<String, Double>> heap = new PriorityQueue<>(Math.min(k, Math.max(1, scores.size())), Map.Entry.comparingByValue());
+        for (Map.Entry<String, Double> entry : scores.entrySet()) {
+            if (heap.size() < k) {
+                heap.add(entry);
+            } else if (entry.getValue() > heap.peek().getValue()) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        List<Map.Entry<String, Double>> top = new ArrayList<>(heap);
+        top.sort((entry1, entry2) -> Double.compare(entry2.getValue(), entry1.getValue()));
+        return top;
+    }
+
+    static class TFIDFValue {
+        int word;
+        double tf;
+        double idf;
+
+        TFIDFValue(int word, double tf, double idf) {
+            this.tf = tf;
+            this.idf = idf;
+            this.word = word;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package org.semanticbm25;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class is an in-memory stand-in for the PostgreSQL database of IndexEquivalenceCheck: the tables words,
+ * documents, tf and tfsem, and the statements that TestBM25, DocumentIndexWriter, ExternalIndexBuilder and
+ * IndexSnapshot send, evaluated with the semantics of their SQL (the JDBC interfaces are java.lang.reflect.Proxy).
+ * Any other statement is refused with SQLFeatureNotSupportedException, so a new statement is noticed by the check.
+ * Every executed statement or batch is counted as a round trip, every returned row as a row.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+final class MemoryDatabase {
+    private static final Pattern TF_IN = Pattern.compile("SELECT id, word, tf FROM tf WHERE word IN \\((.*)\\)");
+    private static final Pattern POSTINGS = Pattern.compile("SELECT t\\.id, t\\.word, t\\.(tf|tfsem), d\\.doclen FROM (tf|tfsem) t "
+            + "JOIN documents d ON d\\.id = t\\.id WHERE t\\.word = ANY \\(\\?\\)");
+    private static final Pattern POSTINGS_LIMITED = Pattern.compile("SELECT t\\.id, q\\.word, t\\.(tf|tfsem), d\\.doclen "
+            + "FROM unnest\\(\\?::integer\\[\\], \\?::bigint\\[\\]\\) WITH ORDINALITY AS q\\(word, max_rows, rank\\) "
+            + "CROSS JOIN LATERAL \\(SELECT p\\.id, p\\.(tf|tfsem) FROM (tf|tfsem) p WHERE p\\.word = q\\.word LIMIT q\\.max_rows\\) t "
+            + "JOIN documents d ON d\\.id = t\\.id ORDER BY q\\.rank");
+    private static final Pattern POSTINGS_ORDERED = Pattern.compile("SELECT t\\.word, o\\.ordinal, t\\.(tf|tfsem) FROM (tf|tfsem) t "
+            + "JOIN \\(SELECT id, ROW_NUMBER\\(\\) OVER \\(ORDER BY id\\) - 1 AS ordinal FROM documents\\) o ON o\\.id = t\\.id "
+            + "ORDER BY t\\.word, o\\.ordinal");
+    private static final Pattern COUNT = Pattern.compile("SELECT COUNT\\(\\*\\) FROM (documents|words|tf|tfsem)");
+
+    final TreeMap<Integer, Double[]> words = new TreeMap<>();// word -> {idf, idfsem}, null until they are set
+    final TreeMap<String, Integer> documents = new TreeMap<>();// id -> doclen
+    final TreeMap<Integer, TreeMap<String, Double>> tf = new TreeMap<>();// word -> id -> tf
+    final TreeMap<Integer, TreeMap<String, Double>> tfsem = new TreeMap<>();// word -> id -> tfsem
+    long roundTrips;
+    long rowsReturned;
+    long rowNanos;// The time to produce and send one row, e.g. to let a query run out of time
+
+    Connection connection() {
+        boolean[] autoCommit = {true};
+        int[] isolation = {Connection.TRANSACTION_READ_COMMITTED};
+        return proxy(Connection.class, (method, args) -> {
+            switch (method.getName()) {
+                case "createStatement":
+                    return statement(null, autoCommit);
+                case "prepareStatement":
+                    return statement(normalize((String) args[0]), autoCommit);
+                case "createArrayOf":
+                    Object[] elements = (Object[]) args[1];
+                    return proxy(java.sql.Array.class, (arrayMethod, arrayArgs) -> elements);
+                case "getAutoCommit":
+                    return autoCommit[0];
+                case "setAutoCommit":
+                    autoCommit[0] = (Boolean) args[0];
+                    return null;
+                case "getTransactionIsolation":
+                    return isolation[0];
+                case "setTransactionIsolation":
+                    isolation[0] = (Integer) args[0];
+                    return null;
+                case "commit":
+                case "rollback":
+                case "close":
+                    return null;
+                default:
+                    throw new SQLFeatureNotSupportedException("Connection." + method.getName());
+            }
+        });
+    }
+
+    /**
+     * A Statement (sql == null) or a PreparedStatement of sql. As with the PostgreSQL driver, the rows of a query are
+     * streamed only with a fetch size inside a transaction; otherwise all of them are produced before executeQuery
+     * returns. Statement.cancel (from another thread) stops the query with an SQLException.
+     */
+    private Statement statement(String sql, boolean[] autoCommit) {
+        Execution execution = new Execution();
+        Map<Integer, Object> params = new HashMap<>();
+        List<Map<Integer, Object>> batch = new ArrayList<>();
+        Class<? extends Statement> type = sql == null ? Statement.class : PreparedStatement.class;
+        return proxy(type, (method, args) -> {
+            switch (method.getName()) {
+                case "setString":
+                case "setInt":
+                case "setLong":
+                case "setDouble":
+                    params.put((Integer) args[0], args[1]);
+                    return null;
+                case "setArray":
+                    params.put((Integer) args[0], ((java.sql.Array) args[1]).getArray());
+                    return null;
+                case "addBatch":
+                    batch.add(new HashMap<>(params));
+                    return null;
+                case "executeBatch":
+                case "executeLargeBatch":
+                    roundTrips++;
+                    for (Map<Integer, Object> rowParams : batch) {
+                        update(sql, rowParams);
+                    }
+                    int rows = batch.size();
+                    batch.clear();
+                    return method.getName().equals("executeBatch") ? (Object) new int[rows] : (Object) new long[rows];
+                case "executeUpdate":
+                    roundTrips++;
+                    return update(sql == null ? normalize((String) args[0]) : sql, params);
+                case "executeQuery":
+                    roundTrips++;
+                    execution.cancelled = false;
+                    Rows result = query(sql == null ? normalize((String) args[0]) : sql, params);
+                    boolean streamed = execution.fetchSize > 0 && !autoCommit[0];
+                    if (!streamed) {
+                        for (int row = 0; row < result.rows.size(); row++) {
+                            execution.produceRow();
+                        }
+                    }
+                    return resultSet(result, streamed ? execution : null);
+                case "setFetchSize":
+                    execution.fetchSize = (Integer) args[0];
+                    return null;
+                case "cancel":
+                    execution.cancelled = true;
+                    return null;
+                case "setQueryTimeout":
+                case "close":
+                    return null;
+                default:
+                    throw new SQLFeatureNotSupportedException("Statement." + method.getName());
+            }
+        });
+    }
+
+    private int update(String sql, Map<Integer, Object> params) throws SQLException {
+        if (sql.startsWith("CREATE TABLE") || sql.startsWith("CREATE INDEX")) {
+            return 0;
+        }
+        if (sql.startsWith("INSERT INTO words (word)")) {
+            words.putIfAbsent((Integer) params.get(1), new Double[2]);
+        } else if (sql.startsWith("INSERT INTO documents (id, doclen)")) {
+            documents.put((String) params.get(1), (Integer) params.get(2));
+        } else if (sql.startsWith("INSERT INTO tf (id, word, tf)")) {
+            tf.computeIfAbsent((Integer) params.get(2), w -> new TreeMap<>()).put((String) params.get(1), ((Number) params.get(3)).doubleValue());
+        } else if (sql.startsWith("INSERT INTO tfsem (id, word, tfsem)")) {
+            tfsem.computeIfAbsent((Integer) params.get(2), w -> new TreeMap<>()).put((String) params.get(1), ((Number) params.get(3)).doubleValue());
+        } else if (sql.startsWith("UPDATE words SET idf = ? WHERE word = ?")) {
+            words.get((Integer) params.get(2))[0] = (Double) params.get(1);
+        } else if (sql.startsWith("UPDATE words SET idfsem = ? WHERE word = ?")) {
+            words.get((Integer) params.get(2))[1] = (Double) params.get(1);
+        } else if (sql.startsWith("WITH document_count AS")) {
+            // SET idf (idfsem) = LN(((total - doc_count + 0.5) / (doc_count + 0.5)) + 1) of the words with rows in tf (tfsem)
+            boolean sem = sql.contains("FROM tfsem");
+            int total = documents.size();
+            for (Map.Entry<Integer, TreeMap<String, Double>> entry : (sem ? tfsem : tf).entrySet()) {
+                int docCount = entry.getValue().size();
+                words.get(entry.getKey())[sem ? 1 : 0] = Math.log(((total - docCount + 0.5) / (docCount + 0.5)) + 1);
+            }
+        } else {
+            throw new SQLFeatureNotSupportedException(sql);
+        }
+        return 1;
+    }
+
+    private Rows query(String sql, Map<Integer, Object> params) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        Matcher matcher;
+        if ((matcher = COUNT.matcher(sql)).matches()) {
+            String table = matcher.group(1);
+            long count = table.equals("documents") ? documents.size() : table.equals("words") ? words.size()
+                    : (table.equals("tf") ? tf : tfsem).values().stream().mapToLong(Map::size).sum();
+            rows.add(new Object[]{count});
+            return new Rows(rows, "count");
+        }
+        if (sql.equals("SELECT AVG(doclen) AS avg_doclen FROM documents")) {
+            rows.add(new Object[]{documents.values().stream().mapToInt(Integer::intValue).average().orElse(0)});
+            return new Rows(rows, "avg_doclen");
+        }
+        if (sql.startsWith("SELECT word, idf FROM words WHERE word = ANY (?)")) {
+            boolean notNull = sql.endsWith("AND idf IS NOT NULL");
+            for (Object word : (Object[]) params.get(1)) {
+                Double[] idf = words.get((Integer) word);
+                if (idf != null && (idf[0] != null || !notNull)) {
+                    rows.add(new Object[]{word, idf[0]});
+                }
+            }
+            return new Rows(rows, "word", "idf");
+        }
+        if ((matcher = TF_IN.matcher(sql)).matches()) {
+            for (String word : matcher.group(1).split(",")) {
+                tf.getOrDefault(Integer.parseInt(word.trim()), new TreeMap<>())
+                        .forEach((id, value) -> rows.add(new Object[]{id, Integer.parseInt(word.trim()), value}));
+            }
+            return new Rows(rows, "id", "word", "tf");
+        }
+        if ((matcher = POSTINGS.matcher(sql)).matches()) {
+            String table = matcher.group(2);
+            for (Object word : new LinkedHashSet<>(Arrays.asList((Object[]) params.get(1)))) {
+                (table.equals("tf") ? tf : tfsem).getOrDefault((Integer) word, new TreeMap<>())
+                        .forEach((id, value) -> rows.add(new Object[]{id, word, value, documents.get(id)}));
+            }
+            return new Rows(rows, "id", "word", table, "doclen");
+        }
+        if ((matcher = POSTINGS_LIMITED.matcher(sql)).matches()) {// In the order of the array, at most max_rows rows (NULL - all) of a word
+            String table = matcher.group(3);
+            Object[] postingWords = (Object[]) params.get(1);
+            Object[] maxRows = (Object[]) params.get(2);
+            for (int i = 0; i < postingWords.length; i++) {
+                Object word = postingWords[i];
+                long wordRows = maxRows[i] == null ? Long.MAX_VALUE : ((Number) maxRows[i]).longValue();
+                for (Map.Entry<String, Double> posting : (table.equals("tf") ? tf : tfsem).getOrDefault((Integer) word, new TreeMap<>()).entrySet()) {
+                    if (wordRows-- == 0) break;
+                    rows.add(new Object[]{posting.getKey(), word, posting.getValue(), documents.get(posting.getKey())});
+                }
+            }
+            return new Rows(rows, "id", "word", table, "doclen");
+        }
+        if (sql.equals("SELECT id, doclen FROM documents ORDER BY id")) {
+            documents.forEach((id, doclen) -> rows.add(new Object[]{id, doclen}));
+            return new Rows(rows, "id", "doclen");
+        }
+        if (sql.equals("SELECT word, idf, idfsem FROM words ORDER BY word")) {
+            words.forEach((word, idf) -> rows.add(new Object[]{word, idf[0], idf[1]}));
+            return new Rows(rows, "word", "idf", "idfsem");
+        }
+        if ((matcher = POSTINGS_ORDERED.matcher(sql)).matches()) {
+            String table = matcher.group(2);
+            Map<String, Integer> ordinals = new HashMap<>();
+            documents.keySet().forEach(id -> ordinals.put(id, ordinals.size()));
+            (table.equals("tf") ? tf : tfsem).forEach((word, postings) ->
+                    postings.forEach((id, value) -> rows.add(new Object[]{word, (long) ordinals.get(id), value})));
+            return new Rows(rows, "word", "ordinal", table);
+        }
+        throw new SQLFeatureNotSupportedException(sql);
+    }
+
+    /**
+     * The rows and the column labels of a query.
+     */
+    private static final class Rows {
+        final List<Object[]> rows;
+        final List<String> labels;
+
+        Rows(List<Object[]> rows, String... labels) {
+            this.rows = rows;
+            this.labels = Arrays.asList(labels);
+        }
+    }
+
+    /**
+     * The state of the query a statement runs.
+     */
+    private final class Execution {
+        volatile boolean cancelled;
+        int fetchSize;
+
+        void produceRow() throws SQLException {
+            long end = System.nanoTime() + rowNanos;
+            while (rowNanos > 0 && System.nanoTime() - end < 0) {
+                Thread.onSpinWait();
+            }
+            if (cancelled) {
+                throw new SQLException("canceling statement due to user request");
+            }
+        }
+    }
+
+    /**
+     * A forward-only ResultSet over the rows, produced by next() when the query is streamed (streamed != null);
+     * a column is read by label or by index (from 1), NULL reads as 0.
+     */
+    private ResultSet resultSet(Rows result, Execution streamed) {
+        List<Object[]> rows = result.rows;
+        List<String> columns = result.labels;
+        int[] row = {-1};
+        boolean[] wasNull = {false};
+        return proxy(ResultSet.class, (method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    if (row[0] + 1 < rows.size()) {
+                        if (streamed != null) {
+                            streamed.produceRow();
+                        }
+                        rowsReturned++;
+                        row[0]++;
+                        return true;
+                    }
+                    return false;
+                case "wasNull":
+                    return wasNull[0];
+                case "close":
+                    return null;
+                case "getString":
+                case "getInt":
+                case "getLong":
+                case "getDouble":
+                    int column = args[0] instanceof Integer ? (Integer) args[0] - 1 : columns.indexOf((String) args[0]);
+                    if (column < 0) {
+                        throw new SQLException("No column " + args[0]);
+                    }
+                    Object value = rows.get(row[0])[column];
+                    wasNull[0] = value == null;
+                    switch (method.getName()) {
+                        case "getString":
+                            return value == null ? null : value.toString();
+                        case "getInt":
+                            return value == null ? 0 : ((Number) value).intValue();
+                        case "getLong":
+                            return value == null ? 0L : ((Number) value).longValue();
+                        default:
+                            return value == null ? 0.0 : ((Number) value).doubleValue();
+                    }
+                default:
+                    throw new SQLFeatureNotSupportedException("ResultSet." + method.getName());
+            }
+        });
+    }
+
+    private static String normalize(String sql) {
+        return sql.replaceAll("\\s+", " ").trim().replaceAll(";$", "");
+    }
+
+    private interface Handler {
+        Object invoke(Method method, Object[] args) throws Exception;
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "toString":
+                    return "MemoryDatabase " + type.getSimpleName();
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return handler.invoke(method, args);
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(MemoryDatabase.class.getClassLoader(), new Class<?>[]{type}, invocationHandler));
+    }
+}
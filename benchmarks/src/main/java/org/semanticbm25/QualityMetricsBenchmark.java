@@ -0,0 +1,90 @@
+package org.semanticbm25;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the quality metrics of TestBM25 on synthetic rankings: the per-query functions,
+ * the mean functions over a set of queries and the single-pass QualityEvaluator used by compare.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QualityMetricsBenchmark {
+    static final int QUERIES = 100;
+    static final int RELEVANT = 40;
+
+    @Param({"10", "1000", "100000"})
+    int rankingSize;
+
+    @Param({"29"})
+    long seed;
+
+    List<String> ranking;
+    Map<String, Integer> relevance;
+    List<TestBM25.QueryResult> queries;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCorpus corpus = new SyntheticCorpus(seed);
+        int documents = Math.max(2 * rankingSize, 1000);
+        ranking = corpus.ranking(rankingSize, documents);
+        relevance = corpus.relevance(RELEVANT, documents);
+        queries = new ArrayList<>(QUERIES);
+        for (int q = 0; q < QUERIES; q++) {
+            queries.add(new TestBM25.QueryResult("q" + q, corpus.ranking(rankingSize, documents),
+                    corpus.ranking(rankingSize, documents), corpus.relevance(RELEVANT, documents)));
+        }
+    }
+
+    @Benchmark
+    public double precisionAtK() {
+        return TestBM25.precisionAtK(ranking, relevance, rankingSize);
+    }
+
+    @Benchmark
+    public double averagePrecision() {
+        return TestBM25.averagePrecision(ranking, relevance, rankingSize);
+    }
+
+    @Benchmark
+    public double ndcgAtK() {
+        return TestBM25.ndcgAtK(ranking, relevance, rankingSize);
+    }
+
+    @Benchmark
+    public void meanMetrics(Blackhole bh) {
+        for (boolean useFirstAlg : new boolean[]{true, false}) {
+            bh.consume(TestBM25.meanPrecisionAtK(queries, useFirstAlg, rankingSize));
+            bh.consume(TestBM25.meanRecallAtK(queries, useFirstAlg, rankingSize));
+            bh.consume(TestBM25.meanF1AtK(queries, useFirstAlg, rankingSize));
+            bh.consume(TestBM25.meanAveragePrecision(queries, useFirstAlg, rankingSize));
+            bh.consume(TestBM25.meanNdcgAtK(queries, useFirstAlg, rankingSize));
+            bh.consume(TestBM25.sumScore(queries, useFirstAlg, rankingSize));
+            bh.consume(TestBM25.sumScore2(queries, useFirstAlg, rankingSize));
+        }
+    }
+
+    @Benchmark
+    public QualityEvaluator.QueryMetrics[] evaluator() {
+        return QualityEvaluator.evaluate(queries, rankingSize);
+    }
+
+    @Benchmark
+    public QualityEvaluator.QueryMetrics[] evaluatorThreeCutoffs() {
+        return QualityEvaluator.evaluate(queries, 10, 100, rankingSize);
+    }
+}
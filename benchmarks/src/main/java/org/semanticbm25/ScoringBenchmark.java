@@ -0,0 +1,227 @@
+package org.semanticbm25;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the BM25 scoring: getBM25WeightForDoc, scoreDocuments (ListScoring) over the fetched postings
+ * and the top-k selection of the scored documents.
+ * accumulateLists and accumulateContext score the postings of the query from scratch: with a TFIDFValue list per
+ * document id (ListScoring, the former scoring of computeBM25Scores) and with the ScoringContext of the thread (dense scores by
+ * document ordinal, precomputed float norms). searchSnapshot and searchSnapshotBatch run the search of SearchServer
+ * and TestBM25 over an IndexSnapshot of the same postings: tokenization, scoring and the top 10 TopDocuments.
+ * The gc.alloc.rate.norm of the GC profiler (BenchmarkRunner) shows the bytes allocated per query.
+ * The postings of a 4-term query are built from a synthetic Zipfian corpus of the given number of documents.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoringBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int documents;
+
+    @Param({"29"})
+    long seed;
+
+    Map<String, List<ListScoring.TFIDFValue>> docTfIdfMap;
+    Map<String, Integer> docLengths;
+    Map<String, Double> scores;
+    List<ListScoring.TFIDFValue> longestList;
+    double avgDoclen;
+
+    String[] docIds;
+    int[] docLengthArray;
+    float[] norms;
+    int[][] postingDocs;// The postings of every query term: document ordinals and tf
+    double[][] postingTfs;
+    double[] termIdf;
+    int[] top = new int[10];
+
+    Encoding encoding;
+    String query;// The text of the query terms (the terms are the tokens of this text)
+    List<String> batch;// The query repeated, as a micro-batch of SearchServer
+    Path snapshotFile;
+    SnapshotSearcher searcher;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        SyntheticCorpus corpus = new SyntheticCorpus(seed);
+        encoding = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+        IntArrayList queryIds = new IntArrayList();
+        for (int term : corpus.query(4)) queryIds.add(term);
+        query = encoding.decode(queryIds);
+        batch = Collections.nCopies(16, query);
+        Set<Integer> queryTerms = new HashSet<>(encoding.encode(query).boxed());
+
+        docLengths = new HashMap<>();
+        docIds = new String[documents];
+        docLengthArray = new int[documents];
+        Map<String, Map<Integer, Integer>> tfs = new HashMap<>();
+        long totalLength = 0;
+        for (int d = 0; d < documents; d++) {
+            String docId = "doc" + d;
+            int[] terms = corpus.document(50 + corpus.random().nextInt(200));
+            totalLength += terms.length;
+            docIds[d] = docId;
+            docLengthArray[d] = terms.length;
+            docLengths.put(docId, terms.length);
+            for (int term : terms) {
+                if (queryTerms.contains(term)) {
+                    tfs.computeIfAbsent(docId, id -> new HashMap<>()).merge(term, 1, Integer::sum);
+                }
+            }
+        }
+        avgDoclen = (double) totalLength / documents;
+
+        Map<Integer, Integer> df = new HashMap<>();
+        tfs.values().forEach(tf -> tf.keySet().forEach(term -> df.merge(term, 1, Integer::sum)));
+        docTfIdfMap = new HashMap<>();
+        for (var doc : tfs.entrySet()) {
+            for (var tf : doc.getValue().entrySet()) {
+                int n = df.get(tf.getKey());
+                double idf = Math.log((documents - n + 0.5) / (n + 0.5) + 1);
+                docTfIdfMap.computeIfAbsent(doc.getKey(), id -> new ArrayList<>())
+                        .add(new ListScoring.TFIDFValue(tf.getKey(), tf.getValue(), idf));
+            }
+        }
+        longestList = docTfIdfMap.values().stream().max(Comparator.comparingInt(List::size)).orElse(Collections.emptyList());
+        scores = ListScoring.scoreDocuments(docTfIdfMap, docLengths, TestBM25.BM25_k, TestBM25.BM25_b, avgDoclen);
+
+        norms = new float[documents];
+        for (int d = 0; d < documents; d++) {
+            norms[d] = (float) ScoringContext.norm(TestBM25.BM25_k, TestBM25.BM25_b, docLengthArray[d], avgDoclen);
+        }
+        List<Integer> terms = new ArrayList<>(df.keySet());
+        postingDocs = new int[terms.size()][];
+        postingTfs = new double[terms.size()][];
+        termIdf = new double[terms.size()];
+        for (int t = 0; t < terms.size(); t++) {
+            int term = terms.get(t);
+            int n = df.get(term);
+            termIdf[t] = Math.log((documents - n + 0.5) / (n + 0.5) + 1);
+            postingDocs[t] = new int[n];
+            postingTfs[t] = new double[n];
+            int i = 0;
+            for (int d = 0; d < documents; d++) {
+                Integer tf = tfs.getOrDefault(docIds[d], Collections.emptyMap()).get(term);
+                if (tf != null) {
+                    postingDocs[t][i] = d;
+                    postingTfs[t][i++] = tf;
+                }
+            }
+        }
+        writeSnapshot(terms);
+    }
+
+    /**
+     * The snapshot of the postings of the query terms (tfsem = tf), written from a MemoryDatabase.
+     */
+    private void writeSnapshot(List<Integer> terms) throws IOException, SQLException {
+        MemoryDatabase db = new MemoryDatabase();
+        for (int d = 0; d < documents; d++) {
+            db.documents.put(docIds[d], docLengthArray[d]);
+        }
+        for (int t = 0; t < terms.size(); t++) {
+            TreeMap<String, Double> postings = new TreeMap<>();
+            for (int i = 0; i < postingDocs[t].length; i++) {
+                postings.put(docIds[postingDocs[t][i]], postingTfs[t][i]);
+            }
+            db.words.put(terms.get(t), new Double[]{termIdf[t], termIdf[t]});
+            db.tf.put(terms.get(t), postings);
+            db.tfsem.put(terms.get(t), new TreeMap<>(postings));
+        }
+        snapshotFile = Files.createTempFile("bm25-benchmark", ".snapshot");
+        IndexSnapshot.write(db.connection(), snapshotFile, TestBM25.maxKNN, TestBM25.minSim, TestBM25.lsim, TestBM25.BM25_k, TestBM25.BM25_b);
+        searcher = new SnapshotSearcher(IndexSnapshot.open(snapshotFile, TestBM25.maxKNN, TestBM25.minSim, TestBM25.lsim));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        try {
+            Files.deleteIfExists(snapshotFile);
+        } catch (IOException e) {// Still mapped (Windows)
+            snapshotFile.toFile().deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public double bm25WeightForDoc() {
+        return ListScoring.getBM25WeightForDoc(longestList, TestBM25.BM25_k, TestBM25.BM25_b, avgDoclen, 120);
+    }
+
+    @Benchmark
+    public Map<String, Double> scoreDocuments() {
+        return ListScoring.scoreDocuments(docTfIdfMap, docLengths, TestBM25.BM25_k, TestBM25.BM25_b, avgDoclen);
+    }
+
+    @Benchmark
+    public void accumulateLists(Blackhole bh) {
+        Map<String, List<ListScoring.TFIDFValue>> lists = new HashMap<>();
+        for (int t = 0; t < postingDocs.length; t++) {
+            for (int i = 0; i < postingDocs[t].length; i++) {
+                lists.computeIfAbsent(docIds[postingDocs[t][i]], id -> new ArrayList<>())
+                        .add(new ListScoring.TFIDFValue(t, postingTfs[t][i], termIdf[t]));
+            }
+        }
+        Map<String, Double> scored = ListScoring.scoreDocuments(lists, docLengths, TestBM25.BM25_k, TestBM25.BM25_b, avgDoclen);
+        bh.consume(ListScoring.topScores(scored, top.length));
+    }
+
+    @Benchmark
+    public int accumulateContext() {
+        ScoringContext context = ScoringContext.forThread(documents);
+        for (int t = 0; t < postingDocs.length; t++) {
+            int[] docs = postingDocs[t];
+            double[] tfs = postingTfs[t];
+            for (int i = 0; i < docs.length; i++) {
+                context.add(docs[i], ScoringContext.weight(termIdf[t], tfs[i], TestBM25.BM25_k, norms[docs[i]]));
+            }
+        }
+        return context.topK(top.length, top);
+    }
+
+    @Benchmark
+    public TopDocuments searchSnapshot() {
+        return searcher.computeBM25Scores(encoding, query, TestBM25.BM25_k, TestBM25.BM25_b, false, top.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(16)
+    public List<TopDocuments> searchSnapshotBatch() {
+        return searcher.computeBM25ScoresBatch(encoding, batch, TestBM25.BM25_k, TestBM25.BM25_b, false, top.length);
+    }
+
+    @Benchmark
+    public void rankAll(Blackhole bh) {
+        bh.consume(ListScoring.rankDocuments(scores, TestBM25.TOP_k));
+    }
+
+    @Benchmark
+    public void rankTop10(Blackhole bh) {
+        bh.consume(ListScoring.rankDocuments(scores, 10));
+    }
+
+    @Benchmark
+    public void heapTop10(Blackhole bh) {
+        bh.consume(ListScoring.topScores(scores, 10));
+    }
+}
@@ -0,0 +1,118 @@
+package org.semanticbm25;
+
+import java.util.*;
+
+/**
+ * This class generates reproducible synthetic data for the benchmarks: term ids with a Zipfian distribution,
+ * documents, texts made of pseudo-words, rankings and relevance judgments. The same seed always gives the same data.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+final class SyntheticCorpus {
+    static final long SEED = 29;
+    static final int VOCABULARY_SIZE = 50000;
+    static final double ZIPF_EXPONENT = 1.07;
+
+    private static final String[] SYLLABLES = {"ka", "to", "ri", "ne", "mo", "sa", "li", "vu", "de", "po", "ga", "chi", "ber", "on", "ex", "tra"};
+
+    private final double[] cdf;
+    private final Random random;
+
+    SyntheticCorpus(long seed) {
+        this(VOCABULARY_SIZE, ZIPF_EXPONENT, seed);
+    }
+
+    SyntheticCorpus(int vocabularySize, double exponent, long seed) {
+        this.random = new Random(seed);
+        this.cdf = new double[vocabularySize];
+        double sum = 0;
+        for (int rank = 1; rank <= vocabularySize; rank++) {
+            sum += 1.0 / Math.pow(rank, exponent);
+            cdf[rank - 1] = sum;
+        }
+        for (int i = 0; i < vocabularySize; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    Random random() {
+        return random;
+    }
+
+    /**
+     * Returns a term id from 0 to vocabularySize - 1, the term id is its frequency rank.
+     */
+    int nextTerm() {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+    }
+
+    int[] document(int length) {
+        int[] terms = new int[length];
+        for (int i = 0; i < length; i++) {
+            terms[i] = nextTerm();
+        }
+        return terms;
+    }
+
+    /**
+     * Returns count distinct terms of the query (frequent terms are more likely, as in real queries).
+     */
+    int[] query(int count) {
+        Set<Integer> terms = new LinkedHashSet<>();
+        while (terms.size() < count) {
+            terms.add(nextTerm());
+        }
+        return terms.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * A deterministic pseudo-word for the term id, so the BPE tokenizer sees a Zipfian word distribution.
+     */
+    static String word(int term) {
+        StringBuilder sb = new StringBuilder();
+        int t = term + 1;
+        while (t > 0) {
+            sb.append(SYLLABLES[t % SYLLABLES.length]);
+            t /= SYLLABLES.length;
+        }
+        return sb.toString();
+    }
+
+    String text(int sentences, int wordsPerSentence) {
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < sentences; s++) {
+            for (int w = 0; w < wordsPerSentence; w++) {
+                String word = word(nextTerm());
+                sb.append(w == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+                sb.append(w == wordsPerSentence - 1 ? ". " : " ");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A ranking of size document ids out of documents.
+     */
+    List<String> ranking(int size, int documents) {
+        Set<String> ids = new LinkedHashSet<>();
+        while (ids.size() < size) {
+            ids.add("doc" + random.nextInt(documents));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Relevance judgments (1 - good, 2 - very good) for count documents out of documents.
+     */
+    Map<String, Integer> relevance(int count, int documents) {
+        Map<String, Integer> relevance = new HashMap<>();
+        while (relevance.size() < count) {
+            relevance.put("doc" + random.nextInt(documents), 1 + random.nextInt(2));
+        }
+        return relevance;
+    }
+}
@@ -0,0 +1,79 @@
+package org.semanticbm25;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import me.tongfei.progressbar.DelegatingProgressBarConsumer;
+import me.tongfei.progressbar.ProgressBar;
+import me.tongfei.progressbar.ProgressBarBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of DocumentTokenizer: tokenizeText on an in-memory document and processFile on a document
+ * in a local temporary folder (reading, tokenization and writing of the token file).
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizerBenchmark {
+    @Param({"10", "100", "1000"})
+    int sentences;
+
+    @Param({"29"})
+    long seed;
+
+    Encoding encoding;
+    String text;
+    Path tempDir;
+    Path inputFile;
+    String outputDir;
+    ProgressBar pb;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        encoding = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+        text = new SyntheticCorpus(seed).text(sentences, 20);
+        tempDir = Files.createTempDirectory("bm25-tokenizer-bench");
+        inputFile = Files.writeString(tempDir.resolve("doc.txt"), text);
+        outputDir = Files.createDirectories(tempDir.resolve("out")).toString();
+        pb = new ProgressBarBuilder()
+                .setTaskName("Doc tokenized")
+                .setInitialMax(Long.MAX_VALUE)
+                .setConsumer(new DelegatingProgressBarConsumer(line -> {
+                }))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pb.close();
+        try (Stream<Path> paths = Files.walk(tempDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String tokenizeText() {
+        return DocumentTokenizer.tokenizeText(text, encoding);
+    }
+
+    @Benchmark
+    public void processFile() {
+        DocumentTokenizer.processFile(inputFile, outputDir, encoding, pb);
+    }
+}
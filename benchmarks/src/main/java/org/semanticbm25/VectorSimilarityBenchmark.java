@@ -0,0 +1,93 @@
+package org.semanticbm25;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the similarity kernels against ND4J on random 300-dimensional vectors:
+ * one pair (as Word2Vec.similarity) and one vector against the whole vocabulary (as Word2Vec.wordsNearest).
+ * The SIMD kernel needs --add-modules jdk.incubator.vector, which the forked JVM gets.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class VectorSimilarityBenchmark {
+    static final int DIM = 300;
+
+    @Param({"10000", "100000"})
+    int vocabulary;
+
+    @Param({"29"})
+    long seed;
+
+    float[] matrix;
+    float[] out;
+    VectorSimilarity.Kernel simd;
+    INDArray nd4jMatrix;
+    INDArray nd4jQuery;
+    INDArray nd4jA;
+    INDArray nd4jB;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(seed);
+        matrix = new float[vocabulary * DIM];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = (float) random.nextGaussian();
+        }
+        for (int r = 0; r < vocabulary; r++) {
+            VectorSimilarity.normalize(matrix, r * DIM, DIM);
+        }
+        out = new float[vocabulary];
+        simd = VectorSimilarity.KERNEL;
+        nd4jMatrix = Nd4j.create(matrix, new long[]{vocabulary, DIM}, 'c');
+        nd4jQuery = nd4jMatrix.getRow(0).dup().reshape(DIM, 1);
+        nd4jA = nd4jMatrix.getRow(0).dup();
+        nd4jB = nd4jMatrix.getRow(1).dup();
+    }
+
+    @Benchmark
+    public double pairScalar() {
+        return VectorSimilarity.SCALAR.dot(matrix, 0, matrix, DIM, DIM);
+    }
+
+    @Benchmark
+    public double pairSimd() {
+        return simd.dot(matrix, 0, matrix, DIM, DIM);
+    }
+
+    @Benchmark
+    public double pairNd4j() {
+        return Transforms.cosineSim(nd4jA, nd4jB);
+    }
+
+    @Benchmark
+    public float[] oneToManyScalar() {
+        VectorSimilarity.SCALAR.dotMany(matrix, 0, matrix, DIM, vocabulary, out);
+        return out;
+    }
+
+    @Benchmark
+    public float[] oneToManySimd() {
+        simd.dotMany(matrix, 0, matrix, DIM, vocabulary, out);
+        return out;
+    }
+
+    @Benchmark
+    public INDArray oneToManyNd4j() {
+        return nd4jMatrix.mmul(nd4jQuery);
+    }
+}
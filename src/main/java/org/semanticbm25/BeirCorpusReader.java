@@ -0,0 +1,102 @@
+package org.semanticbm25;
+
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * This class reads a BEIR corpus (corpus.jsonl: one {"_id", "title", "text"} object per line) record by record.
+ * The file can be plain (.jsonl), compressed (.gz) or a BEIR zip archive (.zip, the corpus.jsonl entry is read).
+ * Only the current line is held in memory.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class BeirCorpusReader implements Iterator<BeirCorpusReader.Document>, Closeable {
+    private final BufferedReader reader;
+    private Document next;
+
+    public static class Document {
+        public final String id;
+        public final String title;
+        public final String text;
+
+        public Document(String id, String title, String text) {
+            this.id = id;
+            this.title = title;
+            this.text = text;
+        }
+
+        /**
+         * The title and the text of the document, as one text for tokenization.
+         */
+        public String content() {
+            return title.isEmpty() ? text : title + "\n" + text;
+        }
+    }
+
+    public BeirCorpusReader(Path corpus) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(open(corpus), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private static InputStream open(Path corpus) throws IOException {
+        String name = corpus.getFileName().toString().toLowerCase();
+        InputStream in = new BufferedInputStream(Files.newInputStream(corpus), 1 << 16);
+        if (name.endsWith(".gz")) {
+            return new GZIPInputStream(in, 1 << 16);
+        }
+        if (name.endsWith(".zip")) {
+            ZipInputStream zip = new ZipInputStream(in, StandardCharsets.UTF_8);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String entryName = entry.getName();
+                if (!entry.isDirectory() && (entryName.equals("corpus.jsonl") || entryName.endsWith("/corpus.jsonl"))) {
+                    return zip;
+                }
+            }
+            zip.close();
+            throw new FileNotFoundException("No corpus.jsonl entry in " + corpus);
+        }
+        return in;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) return true;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                JSONObject record = new JSONObject(line);
+                next = new Document(record.get("_id").toString(), record.optString("title", ""), record.optString("text", ""));
+                return true;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return false;
+    }
+
+    @Override
+    public Document next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Document document = next;
+        next = null;
+        return document;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
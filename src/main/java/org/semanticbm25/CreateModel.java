@@ -21,6 +21,7 @@ import java.util.stream.Collectors;
 /**
  * This class creates a Word2vec model and saves it to a file.
  * dataPath - the path to the documents for training the model. (documents should be processed in DocumentTokenizer).
+ * It can be a folder of token files or the single tokenized corpus file written by DocumentTokenizer from corpus.jsonl.
  * savePath - the path for saving the model.
  * It is possible to configure training parameters in the getFitModel method.(more information about the setup <a href="https://deeplearning4j.konduit.ai/deeplearning4j/reference/word2vec-glove-doc2vec#neural-word-embeddings">...</a>)
  *
@@ -0,0 +1,79 @@
+package org.semanticbm25;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * This class writes documents (doclen) and their term frequencies into the documents and tf tables.
+ * Rows are sent in JDBC batches of batchDocuments documents, so the memory does not depend on the corpus size.
+ * Words that are not in the words table (allWords) are skipped, as in TestBM25.createBM25Database.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class DocumentIndexWriter implements DocumentSink, AutoCloseable {
+    static int batchDocuments = 500;
+
+    private final BitSet allWords;
+    private final PreparedStatement pstmt;
+    private final PreparedStatement pstmtTF;
+    private int pendingDocuments;
+    private long documents;
+
+    public DocumentIndexWriter(Connection c, BitSet allWords) throws SQLException {
+        this.allWords = allWords;
+        this.pstmt = c.prepareStatement("INSERT INTO documents (id, doclen) VALUES (?, ?) " +
+                "ON CONFLICT (id) DO UPDATE SET doclen = EXCLUDED.doclen");
+        this.pstmtTF = c.prepareStatement("INSERT INTO tf (id, word, tf) VALUES (?, ?, ?) " +
+                "ON CONFLICT (id, word) DO UPDATE SET tf = EXCLUDED.tf");
+    }
+
+    @Override
+    public void addDocument(String docId, int docLen, Map<Integer, Integer> freq) throws SQLException {
+        pstmt.setString(1, docId);
+        pstmt.setInt(2, docLen);
+        pstmt.addBatch();
+        for (Map.Entry<Integer, Integer> entry : freq.entrySet()) {
+            if (entry.getKey() >= 0 && allWords.get(entry.getKey())) {
+                pstmtTF.setString(1, docId);
+                pstmtTF.setInt(2, entry.getKey());
+                pstmtTF.setInt(3, entry.getValue());
+                pstmtTF.addBatch();
+            }
+        }
+        documents++;
+        if (++pendingDocuments >= batchDocuments) {
+            flush();
+        }
+    }
+
+    public long documents() {
+        return documents;
+    }
+
+    /**
+     * Sends the pending rows (documents first, the tf rows reference them).
+     */
+    public void flush() throws SQLException {
+        if (pendingDocuments == 0) return;
+        int[] docRows = pstmt.executeBatch();
+        int[] tfRows = pstmtTF.executeBatch();
+        Metrics.add(Metrics.Counter.ROWS_WRITTEN, docRows.length + tfRows.length);
+        pendingDocuments = 0;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            flush();
+        } finally {
+            pstmt.close();
+            pstmtTF.close();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.semanticbm25;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * This interface receives the indexed documents: the id, the length in tokens and the term frequencies.
+ * DocumentIndexWriter writes them into the database directly, ExternalIndexBuilder within a fixed memory budget.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public interface DocumentSink {
+    void addDocument(String docId, int docLen, Map<Integer, Integer> freq) throws SQLException, IOException;
+}
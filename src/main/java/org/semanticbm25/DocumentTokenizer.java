@@ -9,18 +9,25 @@ import me.tongfei.progressbar.ProgressBarBuilder;
 import me.tongfei.progressbar.ProgressBarStyle;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.text.BreakIterator;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
  * This class processes txt documents. He changes the text to tokens for learning Word2vec.
+ * When corpusFile is set, a BEIR corpus.jsonl (plain, .gz or .zip) is tokenized in one stream into a single
+ * file tokenizedCorpusFile (one sentence per line), which can be used as dataPath in CreateModel.
  *
  * @author Aleksei Shrank
  * @version 1.0
@@ -31,10 +38,21 @@ public class DocumentTokenizer {
     public static void main(String[] args) {
         String inputDir = "\\BEIR NFCorpus\\Doc";
         String outputDir = "\\BEIR NFCorpus\\DocToken";
+        String corpusFile = null; // BEIR corpus.jsonl (.gz, .zip); when set, it is tokenized into tokenizedCorpusFile instead of inputDir
+        String tokenizedCorpusFile = "\\BEIR NFCorpus\\corpusToken.txt";
 
         Encoding encoding = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
         System.out.println("BPE tokenizer has been initialized (cl100k_base).");
 
+        if (corpusFile != null) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(tokenizedCorpusFile))) {
+                ingestCorpus(Paths.get(corpusFile), encoding, null, writer);
+            } catch (IOException | SQLException e) {
+                System.err.println("Corpus tokenization error: " + e.getMessage());
+            }
+            return;
+        }
+
         try {
             Files.createDirectories(Paths.get(outputDir));
         } catch (IOException e) {
@@ -57,23 +75,9 @@ public class DocumentTokenizer {
         }
     }
 
-    private static void processFile(Path inputPath, String outputDir, Encoding encoding, ProgressBar pb) {
+    static void processFile(Path inputPath, String outputDir, Encoding encoding, ProgressBar pb) {
         try {
-            String text = Files.readString(inputPath);
-            List<String> sentences = splitIntoSentences(text);
-            List<String> tokenizedSentences = new ArrayList<>();
-            for (String sentence : sentences) {
-                if (!sentence.trim().isEmpty()) {
-                    IntArrayList tokenIds = encoding.encode(sentence);
-                    String tokenizedSentence = IntStream.range(0, tokenIds.size())
-                            .mapToObj(tokenIds::get)
-                            .map(String::valueOf)
-                            .collect(Collectors.joining(" "));
-                    tokenizedSentences.add(tokenizedSentence);
-                }
-            }
-
-            String tokenizedText = String.join("\n", tokenizedSentences);
+            String tokenizedText = tokenizeText(Files.readString(inputPath), encoding);
             Path outputPath = Paths.get(outputDir, inputPath.getFileName().toString());
             Files.writeString(outputPath, tokenizedText);
             pb.step();
@@ -83,7 +87,77 @@ public class DocumentTokenizer {
         }
     }
 
-    private static List<String> splitIntoSentences(String text) {
+    /**
+     * Splits the text into sentences and replaces every sentence with a line of space-separated token ids.
+     */
+    static String tokenizeText(String text, Encoding encoding) {
+        List<String> sentences = splitIntoSentences(text);
+        List<String> tokenizedSentences = new ArrayList<>();
+        for (String sentence : sentences) {
+            if (!sentence.trim().isEmpty()) {
+                IntArrayList tokenIds = encoding.encode(sentence);
+                String tokenizedSentence = IntStream.range(0, tokenIds.size())
+                        .mapToObj(tokenIds::get)
+                        .map(String::valueOf)
+                        .collect(Collectors.joining(" "));
+                tokenizedSentences.add(tokenizedSentence);
+            }
+        }
+        return String.join("\n", tokenizedSentences);
+    }
+
+    /**
+     * Reads a BEIR corpus record by record and tokenizes every document as tokenizeText does.
+     * The term frequencies go to indexWriter and the tokenized sentences (one line each) to trainingWriter
+     * (the input of CreateModel); either of them can be null. No intermediate files are created.
+     *
+     * @return the number of documents
+     */
+    static long ingestCorpus(Path corpus, Encoding encoding, DocumentSink indexWriter, Writer trainingWriter) throws IOException, SQLException {
+        Map<Integer, Integer> freq = new HashMap<>();
+        StringBuilder line = new StringBuilder();
+        long documents = 0;
+        try (BeirCorpusReader reader = new BeirCorpusReader(corpus);
+             ProgressBar pb = new ProgressBarBuilder()
+                     .setTaskName("Corpus")
+                     .setInitialMax(-1)
+                     .setStyle(ProgressBarStyle.ASCII)
+                     .build()) {
+            while (reader.hasNext()) {
+                long t = Metrics.start();
+                BeirCorpusReader.Document document = reader.next();
+                freq.clear();
+                int docLen = 0;
+                for (String sentence : splitIntoSentences(document.content())) {
+                    IntArrayList tokenIds = encoding.encode(sentence);
+                    docLen += tokenIds.size();
+                    line.setLength(0);
+                    for (int i = 0; i < tokenIds.size(); i++) {
+                        int w = tokenIds.get(i);
+                        freq.merge(w, 1, Integer::sum);
+                        if (trainingWriter != null) {
+                            if (i > 0) line.append(' ');
+                            line.append(w);
+                        }
+                    }
+                    if (trainingWriter != null && line.length() > 0) {
+                        trainingWriter.append(line).append('\n');
+                    }
+                }
+                if (indexWriter != null) {
+                    indexWriter.addDocument(document.id, docLen, freq);
+                }
+                Metrics.record(Metrics.Stage.INDEX_DOCUMENTS, t);
+                documents++;
+                pb.step();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return documents;
+    }
+
+    static List<String> splitIntoSentences(String text) {
         List<String> sentences = new ArrayList<>();
         BreakIterator iterator = BreakIterator.getSentenceInstance(Locale.US);
         iterator.setText(text);
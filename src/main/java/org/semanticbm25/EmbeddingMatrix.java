@@ -0,0 +1,132 @@
+package org.semanticbm25;
+
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds the word vectors of a model as one contiguous row-major float array of unit-length rows,
+ * so the cosine similarity is a dot product computed by VectorSimilarity (instead of per-pair ND4J calls).
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class EmbeddingMatrix {
+    private final String[] words;
+    private final Map<String, Integer> rows;
+    private final float[] data;
+    private final int dim;
+
+    public EmbeddingMatrix(String[] words, float[] data, int dim) {
+        this.words = words;
+        this.data = data;
+        this.dim = dim;
+        this.rows = new HashMap<>(words.length * 2);
+        for (int r = 0; r < words.length; r++) {
+            rows.put(words[r], r);
+            VectorSimilarity.normalize(data, r * dim, dim);
+        }
+    }
+
+    public static EmbeddingMatrix fromWordVectors(WordVectors wordVectors, List<String> words) {
+        int dim = wordVectors.lookupTable().layerSize();
+        float[] data = new float[words.size() * dim];
+        for (int r = 0; r < words.size(); r++) {
+            double[] vector = wordVectors.getWordVector(words.get(r));
+            for (int i = 0; i < dim; i++) {
+                data[r * dim + i] = (float) vector[i];
+            }
+        }
+        return new EmbeddingMatrix(words.toArray(new String[0]), data, dim);
+    }
+
+    public static EmbeddingMatrix fromWordVectors(WordVectors wordVectors) {
+        VocabCache<?> vocab = wordVectors.vocab();// WordVectors returns the raw type
+        List<String> words = List.copyOf(vocab.words());
+        return fromWordVectors(wordVectors, words);
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    public int dim() {
+        return dim;
+    }
+
+    /**
+     * Returns the row of the word or -1 if the word is not in the matrix.
+     */
+    public int indexOf(String word) {
+        return rows.getOrDefault(word, -1);
+    }
+
+    public String word(int row) {
+        return words[row];
+    }
+
+    public double similarity(int row1, int row2) {
+        return VectorSimilarity.dot(data, row1 * dim, data, row2 * dim, dim);
+    }
+
+    /**
+     * Fills out (at least size() long) with the similarity of the row to every row of the matrix.
+     */
+    public void similarities(int row, float[] out) {
+        VectorSimilarity.dotMany(data, row * dim, data, dim, words.length, out);
+    }
+
+    /**
+     * Returns up to k rows with the highest similarities (computed by similarities), the row itself excluded,
+     * in descending order of similarity.
+     */
+    public static int[] nearest(float[] similarities, int size, int row, int k) {
+        int[] heap = new int[Math.max(0, Math.min(k, size - 1))];// Min-heap of rows by similarity
+        int n = 0;
+        for (int r = 0; r < size && heap.length > 0; r++) {
+            if (r == row) continue;
+            if (n < heap.length) {
+                heap[n] = r;
+                siftUp(heap, n++, similarities);
+            } else if (similarities[r] > similarities[heap[0]]) {
+                heap[0] = r;
+                siftDown(heap, n, similarities);
+            }
+        }
+        Integer[] sorted = new Integer[n];
+        for (int i = 0; i < n; i++) sorted[i] = heap[i];
+        Arrays.sort(sorted, (r1, r2) -> Float.compare(similarities[r2], similarities[r1]));
+        return Arrays.stream(sorted).mapToInt(Integer::intValue).toArray();
+    }
+
+    private static void siftUp(int[] heap, int i, float[] key) {
+        int r = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (key[heap[parent]] <= key[r]) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = r;
+    }
+
+    private static void siftDown(int[] heap, int n, float[] key) {
+        int r = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) break;
+            if (child + 1 < n && key[heap[child + 1]] < key[heap[child]]) child++;
+            if (key[r] <= key[heap[child]]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = r;
+    }
+}
@@ -0,0 +1,638 @@
+package org.semanticbm25;
+
+import me.tongfei.progressbar.ProgressBar;
+import me.tongfei.progressbar.ProgressBarBuilder;
+import me.tongfei.progressbar.ProgressBarStyle;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * This class builds the tf and tfsem tables and the idf and idfsem columns within a fixed memory budget
+ * (TestBM25.indexMemoryBudget), for corpora that do not fit in the heap.
+ * The (word, document, tf) tuples are collected in primitive arrays; when the arrays are full they are sorted and
+ * spilled to a run file. The runs are merged (k-way) into the tf rows, the idf of every word (from the document counts)
+ * and a postings file ordered by word. The tfsem tuples (word, document, weighted tf) are generated from the postings
+ * of the semantically nearest words and go through the same sort, spill and merge, which sums the tuples of a word
+ * in a document. The values are the ones of TestBM25.createBM25Database.
+ *
+ * Three quarters of the budget are the tuple arrays (16 bytes per tuple), the rest is left for the merge buffers and
+ * the JDBC batches. A merge pass opens at most maxMergeRuns runs and only as many as have a read buffer of 4 KB in a
+ * quarter of the budget; more runs are first merged into intermediate runs. The document ids and the postings are
+ * temporary files read with positional reads (page cache, not heap), the document ids in blocks of docIdBlock;
+ * they are not memory-mapped, so close() can delete them at once (a mapped file can not be deleted on Windows
+ * until the mapping is garbage collected). A temporary file that can not be deleted is left to deleteOnExit.
+ * The heap also holds the arrays of the vocabulary size (EmbeddingMatrix and a postings offset per word),
+ * which do not grow with the corpus.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class ExternalIndexBuilder implements DocumentSink, AutoCloseable {
+    static int batchRows = 10000; //rows in one JDBC batch
+    static int mergeBufferSize = 1 << 16; //maximum read buffer of one run during the merge
+    static int maxMergeRuns = 64; //runs merged at once (open files), more runs are merged in several passes
+    static int docIdBlock = 256; //document ids read at once by the merge
+
+    private static final int TUPLE_BYTES = 16;// long key (word << 32 | document) + double value
+    private static final int POSTING_BYTES = 8;// int document + int tf
+    private static final int MIN_MERGE_BUFFER = 4096;// bytes of the read buffer of one run
+
+    private final Connection c;
+    private final BitSet allWords;
+    private final long memoryBudget;
+    private final Path tempDir;
+    private final long[] keys;
+    private final double[] values;
+    private int size;
+    private final List<Path> runs = new ArrayList<>();
+    private int runCounter;
+
+    private final PreparedStatement pstmtDoc;
+    private int pendingDocuments;
+    private int documents;
+    private final DataOutputStream docIds;// The UTF-8 bytes of the document ids
+    private final DataOutputStream docIdIndex;// position << 16 | length of every document id
+    private long docIdPosition;
+    private DocIdReader docIdReader;
+
+    private long[] postingsOffsets;// The postings of word w are [postingsOffsets[w], postingsOffsets[w + 1])
+    private TempFile postings;// (int document, int tf) ordered by word and document
+
+    /**
+     * @param tempRoot the directory of the temporary files, or null for java.io.tmpdir
+     */
+    public ExternalIndexBuilder(Connection c, BitSet allWords, long memoryBudget, Path tempRoot) throws SQLException, IOException {
+        long capacity = Math.min(Integer.MAX_VALUE - 8, memoryBudget / 4 * 3 / TUPLE_BYTES);
+        if (capacity < 1024) {
+            throw new IllegalArgumentException("The memory budget is too small: " + memoryBudget + " bytes");
+        }
+        this.c = c;
+        this.allWords = allWords;
+        this.memoryBudget = memoryBudget;
+        this.keys = new long[(int) capacity];
+        this.values = new double[(int) capacity];
+        this.tempDir = tempRoot == null ? Files.createTempDirectory("bm25-index") : Files.createTempDirectory(tempRoot, "bm25-index");
+        this.docIds = output(tempDir.resolve("docids.bin"));
+        this.docIdIndex = output(tempDir.resolve("docids.idx"));
+        this.pstmtDoc = c.prepareStatement("INSERT INTO documents (id, doclen) VALUES (?, ?) " +
+                "ON CONFLICT (id) DO UPDATE SET doclen = EXCLUDED.doclen");
+    }
+
+    @Override
+    public void addDocument(String docId, int docLen, Map<Integer, Integer> freq) throws SQLException, IOException {
+        pstmtDoc.setString(1, docId);
+        pstmtDoc.setInt(2, docLen);
+        pstmtDoc.addBatch();
+        if (++pendingDocuments >= DocumentIndexWriter.batchDocuments) {
+            flushDocuments();
+        }
+        writeDocId(docId);
+        int doc = documents++;
+        for (Map.Entry<Integer, Integer> entry : freq.entrySet()) {
+            int word = entry.getKey();
+            if (word >= 0 && allWords.get(word)) {
+                add(word, doc, entry.getValue());
+            }
+        }
+    }
+
+    public int documents() {
+        return documents;
+    }
+
+    /**
+     * Merges the tf runs: writes the tf rows, sets the idf of the words and writes the postings file for buildTfSem.
+     */
+    public void buildTf() throws SQLException, IOException {
+        long t = Metrics.start();
+        flushDocuments();
+        docIds.close();
+        docIdIndex.close();
+        docIdReader = new DocIdReader(TempFile.open(tempDir.resolve("docids.idx")), TempFile.open(tempDir.resolve("docids.bin")), documents);
+        long total = countDocuments();
+
+        Path postingsFile = tempDir.resolve("postings.bin");
+        postingsOffsets = new long[allWords.length() + 1];
+        long[] posting = {0};// The number of postings written
+        int[] nextWord = {0};// The first word without an offset
+        try (DataOutputStream out = output(postingsFile);
+             TableWriter writer = new TableWriter(
+                     "INSERT INTO tf (id, word, tf) VALUES (?, ?, ?) ON CONFLICT (id, word) DO UPDATE SET tf = EXCLUDED.tf",
+                     "UPDATE words SET idf = ? WHERE word = ?", true, total)) {
+            merge((key, value) -> {
+                int word = (int) (key >>> 32);
+                while (nextWord[0] <= word) {
+                    postingsOffsets[nextWord[0]++] = posting[0];
+                }
+                writer.accept(key, value);
+                out.writeInt((int) key);
+                out.writeInt((int) value);
+                posting[0]++;
+            });
+        }
+        Arrays.fill(postingsOffsets, nextWord[0], postingsOffsets.length, posting[0]);
+        postings = TempFile.open(postingsFile);
+        Metrics.record(Metrics.Stage.INDEX_IDF, t);
+    }
+
+    /**
+     * Generates the tfsem tuples from the postings of every word and its nearest words, merges them into the tfsem rows
+     * and sets the idfsem of the words. buildTf must be called first.
+     */
+    public void buildTfSem(EmbeddingMatrix embeddings, int maxKNN, double minSim, double lsim) throws SQLException, IOException {
+        if (postings == null) {
+            throw new IllegalStateException("buildTf must be called before buildTfSem");
+        }
+        long t = Metrics.start();
+        float[] similarities = new float[embeddings.size()];
+        try (ProgressBar pb = new ProgressBarBuilder()
+                .setTaskName("TFsem")
+                .setInitialMax(allWords.cardinality())
+                .setStyle(ProgressBarStyle.ASCII)
+                .build()) {
+            for (int word = allWords.nextSetBit(0); word >= 0; word = allWords.nextSetBit(word + 1)) {
+                int row = embeddings.indexOf(String.valueOf(word));
+                embeddings.similarities(row, similarities);
+                addSemanticPostings(word, word, 1.0, 0.0);
+                for (int neighbor : EmbeddingMatrix.nearest(similarities, embeddings.size(), row, maxKNN)) {
+                    if (similarities[neighbor] > minSim) {
+                        addSemanticPostings(word, Integer.parseInt(embeddings.word(neighbor)), lsim, similarities[neighbor]);
+                    }
+                }
+                pb.step();
+            }
+        }
+        Metrics.record(Metrics.Stage.INDEX_TFSEM, t);
+
+        t = Metrics.start();
+        try (TableWriter writer = new TableWriter(
+                "INSERT INTO tfsem (id, word, tfsem) VALUES (?, ?, ?) ON CONFLICT (id, word) DO UPDATE SET tfsem = EXCLUDED.tfsem",
+                "UPDATE words SET idfsem = ? WHERE word = ?", false, countDocuments())) {
+            merge(writer::accept);
+        }
+        Metrics.record(Metrics.Stage.INDEX_IDFSEM, t);
+    }
+
+    /**
+     * Adds the postings of nearestWord to word: tf for the word itself, tf * lsim * similar for a nearest word.
+     */
+    private void addSemanticPostings(int word, int nearestWord, double lsim, double similar) throws IOException {
+        if (nearestWord < 0 || nearestWord + 1 >= postingsOffsets.length) return;
+        long end = postingsOffsets[nearestWord + 1];
+        for (long i = postingsOffsets[nearestWord]; i < end; ) {// The postings are read in blocks of mergeBufferSize bytes
+            int count = (int) Math.min(end - i, Math.max(1, mergeBufferSize / POSTING_BYTES));
+            ByteBuffer block = postings.read(i * POSTING_BYTES, count * POSTING_BYTES);
+            for (int j = 0; j < count; j++) {
+                int doc = block.getInt();
+                double freq = block.getInt();
+                add(word, doc, word == nearestWord ? freq : freq * lsim * similar);
+            }
+            i += count;
+        }
+        Metrics.add(Metrics.Counter.POSTINGS_READ, postingsOffsets[nearestWord + 1] - postingsOffsets[nearestWord]);
+    }
+
+    private void add(int word, int doc, double value) throws IOException {
+        if (size == keys.length) {
+            spill();
+        }
+        keys[size] = (long) word << 32 | doc;
+        values[size++] = value;
+    }
+
+    /**
+     * Sorts the tuples and writes them as a run, the tuples with the same key are summed.
+     */
+    private void spill() throws IOException {
+        if (size == 0) return;
+        sort(keys, values, 0, size);
+        Path run = tempDir.resolve("run-" + runCounter++ + ".bin");
+        try (DataOutputStream out = output(run)) {
+            int i = 0;
+            while (i < size) {
+                long key = keys[i];
+                double value = values[i++];
+                while (i < size && keys[i] == key) {
+                    value += values[i++];
+                }
+                out.writeLong(key);
+                out.writeDouble(value);
+            }
+        }
+        runs.add(run);
+        size = 0;
+    }
+
+    private interface TupleConsumer {
+        void accept(long key, double value) throws IOException, SQLException;
+    }
+
+    /**
+     * Merges the runs (and the tuples left in memory) in the order of the keys; the values of equal keys are summed.
+     * At most mergeFanIn() runs are open at once: while there are more, the oldest ones are merged into a new run.
+     * The runs are deleted.
+     */
+    private void merge(TupleConsumer consumer) throws IOException, SQLException {
+        spill();
+        int fanIn = mergeFanIn();
+        int bufferSize = mergeBufferSize(fanIn);
+        try {
+            while (runs.size() > fanIn) {
+                List<Path> group = new ArrayList<>(runs.subList(0, fanIn));
+                runs.subList(0, fanIn).clear();
+                Path run = tempDir.resolve("run-" + runCounter++ + ".bin");
+                try (DataOutputStream out = output(run, bufferSize)) {
+                    mergeRuns(group, (key, value) -> {
+                        out.writeLong(key);
+                        out.writeDouble(value);
+                    }, bufferSize);
+                }
+                runs.add(run);
+            }
+            mergeRuns(runs, consumer, bufferSize);
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+        }
+    }
+
+    /**
+     * The runs merged at once: a buffer of at least MIN_MERGE_BUFFER bytes for every run and for the output of an
+     * intermediate pass must fit in a quarter of the budget, and at most maxMergeRuns files are open.
+     */
+    private int mergeFanIn() {
+        return (int) Math.max(2, Math.min(maxMergeRuns, memoryBudget / 4 / MIN_MERGE_BUFFER - 1));
+    }
+
+    private int mergeBufferSize(int fanIn) {
+        return (int) Math.max(TUPLE_BYTES, Math.min(mergeBufferSize, memoryBudget / 4 / (fanIn + 1)));
+    }
+
+    /**
+     * Merges the runs into the consumer (one k-way pass) and deletes them.
+     */
+    private static void mergeRuns(List<Path> runs, TupleConsumer consumer, int bufferSize) throws IOException, SQLException {
+        List<RunReader> readers = new ArrayList<>(runs.size());
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()), Comparator.comparingLong(r -> r.key));
+        try {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(run, bufferSize);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            boolean pending = false;
+            long key = 0;
+            double value = 0.0;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                if (pending && reader.key != key) {
+                    consumer.accept(key, value);
+                    value = 0.0;
+                }
+                key = reader.key;
+                value += reader.value;
+                pending = true;
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            if (pending) {
+                consumer.accept(key, value);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    /**
+     * Sorts keys[from, to) and moves values along (quicksort, median of three, insertion sort of short ranges).
+     */
+    static void sort(long[] keys, double[] values, int from, int to) {
+        while (to - from > 16) {
+            long a = keys[from];
+            long b = keys[(from + to) >>> 1];
+            long c = keys[to - 1];
+            long pivot = a < b ? (b < c ? b : Math.max(a, c)) : (a < c ? a : Math.max(b, c));
+            int i = from - 1;
+            int j = to;
+            while (true) {
+                do i++; while (keys[i] < pivot);
+                do j--; while (keys[j] > pivot);
+                if (i >= j) break;
+                swap(keys, values, i, j);
+            }
+            if (j + 1 - from < to - j - 1) {// Recursion into the shorter part
+                sort(keys, values, from, j + 1);
+                from = j + 1;
+            } else {
+                sort(keys, values, j + 1, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && keys[j - 1] > keys[j]; j--) {
+                swap(keys, values, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(long[] keys, double[] values, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    private void writeDocId(String docId) throws IOException {
+        byte[] bytes = docId.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("The document id is too long: " + docId.substring(0, 64) + "...");
+        }
+        docIdIndex.writeLong(docIdPosition << 16 | bytes.length);
+        docIds.write(bytes);
+        docIdPosition += bytes.length;
+    }
+
+    private void flushDocuments() throws SQLException {
+        if (pendingDocuments == 0) return;
+        Metrics.add(Metrics.Counter.ROWS_WRITTEN, pstmtDoc.executeBatch().length);
+        pendingDocuments = 0;
+    }
+
+    private long countDocuments() throws SQLException {
+        try (Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM documents")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private static DataOutputStream output(Path file) throws IOException {
+        return output(file, 1 << 16);
+    }
+
+    private static DataOutputStream output(Path file, int bufferSize) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), bufferSize));
+    }
+
+    /**
+     * Closes the statement and the temporary files and deletes them. The deletion is best-effort: a file that can not be
+     * deleted (e.g. still open by another process) is reported and left to deleteOnExit, the tables are already written.
+     */
+    @Override
+    public void close() throws SQLException, IOException {
+        try {
+            pstmtDoc.close();
+            docIds.close();
+            docIdIndex.close();
+        } finally {
+            closeQuietly(docIdReader);
+            closeQuietly(postings);
+            docIdReader = null;
+            postings = null;
+            deleteTempFiles();
+        }
+    }
+
+    private static void closeQuietly(Closeable file) {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Close temporary file error: " + e.getMessage());
+        }
+    }
+
+    private void deleteTempFiles() {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                delete(file);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("List temporary files error: " + e.getMessage());
+        }
+        delete(tempDir);
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Delete temporary file error: " + e.getMessage());
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * Writes the rows of a table (tf or tfsem) in the order of the merge and the idf of every word
+     * (the same formula as the SQL of TestBM25.createBM25Database).
+     */
+    private class TableWriter implements AutoCloseable {
+        private final PreparedStatement pstmtRow;
+        private final PreparedStatement pstmtIdf;
+        private final boolean integerValues;
+        private final long total;
+        private int word = -1;
+        private long docCount;
+        private int pendingRows;
+        private int pendingWords;
+
+        TableWriter(String sqlRow, String sqlIdf, boolean integerValues, long total) throws SQLException {
+            this.pstmtRow = c.prepareStatement(sqlRow);
+            this.pstmtIdf = c.prepareStatement(sqlIdf);
+            this.integerValues = integerValues;
+            this.total = total;
+        }
+
+        void accept(long key, double value) throws SQLException, IOException {
+            int w = (int) (key >>> 32);
+            if (w != word) {
+                endWord();
+                word = w;
+            }
+            pstmtRow.setString(1, docIdReader.docId((int) key));
+            pstmtRow.setInt(2, w);
+            if (integerValues) {
+                pstmtRow.setInt(3, (int) value);
+            } else {
+                pstmtRow.setDouble(3, value);
+            }
+            pstmtRow.addBatch();
+            docCount++;
+            if (++pendingRows >= batchRows) {
+                Metrics.add(Metrics.Counter.ROWS_WRITTEN, pstmtRow.executeBatch().length);
+                pendingRows = 0;
+            }
+        }
+
+        private void endWord() throws SQLException {
+            if (docCount == 0) return;
+            pstmtIdf.setDouble(1, Math.log(((total - docCount + 0.5) / (docCount + 0.5)) + 1));
+            pstmtIdf.setInt(2, word);
+            pstmtIdf.addBatch();
+            docCount = 0;
+            if (++pendingWords >= batchRows) {
+                pstmtIdf.executeBatch();
+                pendingWords = 0;
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                endWord();
+                Metrics.add(Metrics.Counter.ROWS_WRITTEN, pstmtRow.executeBatch().length);
+                pstmtIdf.executeBatch();
+            } finally {
+                pstmtRow.close();
+                pstmtIdf.close();
+            }
+        }
+    }
+
+    private static class RunReader implements Closeable {
+        private final DataInputStream in;
+        private long remaining;
+        long key;
+        double value;
+
+        RunReader(Path run, int bufferSize) throws IOException {
+            this.remaining = Files.size(run) / TUPLE_BYTES;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), bufferSize));
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) return false;
+            remaining--;
+            key = in.readLong();
+            value = in.readDouble();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the document ids for the merge, which asks for increasing documents within a word: the index entries of
+     * docIdBlock documents from the one asked for and the id bytes they cover are read at once, so the documents of
+     * a word with many postings cost two reads per block instead of two per row.
+     */
+    private static class DocIdReader implements Closeable {
+        private final TempFile index;
+        private final TempFile data;
+        private final int documents;
+        private final long[] entries = new long[docIdBlock];
+        private int first;// The block holds the documents [first, first + count)
+        private int count;
+        private long dataStart;
+        private ByteBuffer bytes;
+
+        DocIdReader(TempFile index, TempFile data, int documents) {
+            this.index = index;
+            this.data = data;
+            this.documents = documents;
+        }
+
+        String docId(int doc) throws IOException {
+            if (doc < first || doc >= first + count) {
+                load(doc);
+            }
+            long entry = entries[doc - first];
+            return new String(bytes.array(), (int) ((entry >>> 16) - dataStart), (int) (entry & 0xFFFF), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads the entries from doc and the bytes of as many of them as fit in mergeBufferSize (at least one).
+         */
+        private void load(int doc) throws IOException {
+            int n = Math.min(entries.length, documents - doc);
+            ByteBuffer block = index.read((long) doc * 8, n * 8);
+            first = doc;
+            count = 0;
+            dataStart = block.getLong(0) >>> 16;
+            long dataEnd = dataStart;
+            while (count < n) {
+                long entry = block.getLong();
+                long end = (entry >>> 16) + (entry & 0xFFFF);
+                if (count > 0 && end - dataStart > mergeBufferSize) break;
+                entries[count++] = entry;
+                dataEnd = end;
+            }
+            bytes = data.read(dataStart, (int) (dataEnd - dataStart));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                index.close();
+            } finally {
+                data.close();
+            }
+        }
+    }
+
+    /**
+     * A read-only temporary file read with positional reads into a reused buffer (not thread-safe).
+     */
+    private static class TempFile implements Closeable {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        private TempFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        static TempFile open(Path file) throws IOException {
+            return new TempFile(FileChannel.open(file, StandardOpenOption.READ));
+        }
+
+        /**
+         * Reads length bytes at position; the returned buffer is valid until the next read.
+         */
+        ByteBuffer read(long position, int length) throws IOException {
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+            }
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of the temporary file at " + (position + buffer.position()));
+                }
+            }
+            return buffer.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,602 @@
+package org.semanticbm25;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+/**
+ * This class stores the search state built by TestBM25.createBM25Database in one file and maps it into memory:
+ * the words with idf and idfsem, the tf and tfsem postings of every word, the document ids and lengths,
+ * the length norms for BM25_k/BM25_b, the average document length and the parameters maxKNN, minSim, lsim.
+ * The file has a version and CRC32C checksums; a snapshot built with other maxKNN/minSim/lsim is refused.
+ *
+ * Verification: open() checks the checksum of the header (parameters, counts, average document length, the section
+ * table and the checksums of the sections) and reads nothing else, so a cold start does not read the whole file.
+ * The sections are verified by verify() (TestBM25 does it before the evaluation) or by verifyInBackground()
+ * (SearchServer answers queries at once and stops answering them if a section turns out to be corrupted).
+ *
+ * File layout (little-endian): a header of HEADER_SIZE bytes, then the sections in the order of the Section enum,
+ * every section aligned to 8 bytes. The header checksum is computed with its own field set to 0. Postings of the word with index w are the entries postingsOffsets[w] to
+ * postingsOffsets[w + 1] - 1 of the docs (document ordinals) and values (tf or tfsem) sections. All offsets are longs
+ * and the sections are mapped in chunks of CHUNK_ENTRIES entries, so a section may exceed 2 GB and 2^31 entries;
+ * the entry i is the entry i & (CHUNK_ENTRIES - 1) of the chunk i >>> CHUNK_BITS in every section, so the docs and the
+ * values of the postings are scanned chunk by chunk (postingDocs, postingValues).
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class IndexSnapshot {
+    static final long MAGIC = 0x504E5335324D4253L;// "SBM25SNP"
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 512;
+    static final int SECTION_TABLE = 80;// offset and length of every section
+    static final int SECTION_CHECKSUMS = SECTION_TABLE + 16 * Section.values().length;// CRC32C of every section
+    static final int CHUNK_BITS = Integer.getInteger("semanticbm25.snapshot.chunkBits", 27);// Sections are mapped in chunks of 2^CHUNK_BITS entries (at most 27, 1 GB of longs)
+    static final int CHUNK_ENTRIES = 1 << CHUNK_BITS;
+    static int writeBufferSize = 1 << 16;// The buffer of every section being written
+    static int writeFetchSize = 10000;// Rows fetched per round trip while the snapshot is written
+
+    enum Section {
+        DOC_LENGTHS(4), DOC_NORMS(4), DOC_ID_OFFSETS(8), DOC_ID_BYTES(1), WORDS(4), IDF(8), IDFSEM(8),
+        TF_OFFSETS(8), TF_DOCS(4), TF_VALUES(8), TFSEM_OFFSETS(8), TFSEM_DOCS(4), TFSEM_VALUES(8);
+
+        final int entryBytes;
+
+        Section(int entryBytes) {
+            this.entryBytes = entryBytes;
+        }
+    }
+
+    private final int maxKNN;
+    private final double minSim;
+    private final double lsim;
+    private final double bm25K;
+    private final double bm25B;
+    private final double avgDoclen;
+    private final int numDocs;
+    private final int numWords;
+
+    private final MappedSection docLengths;
+    private final MappedSection docNorms;
+    private final MappedSection docIdOffsets;
+    private final MappedSection docIdBytes;
+    private final MappedSection words;
+    private final MappedSection idf;
+    private final MappedSection idfsem;
+    private final MappedSection tfOffsets;
+    private final MappedSection tfDocs;
+    private final MappedSection tfValues;
+    private final MappedSection tfsemOffsets;
+    private final MappedSection tfsemDocs;
+    private final MappedSection tfsemValues;
+    private final Map<Section, MappedSection> sections;
+    private final long[] checksums;
+
+    private IndexSnapshot(ByteBuffer header, Map<Section, MappedSection> sections) {
+        this.sections = sections;
+        this.checksums = new long[Section.values().length];
+        for (Section section : Section.values()) {
+            checksums[section.ordinal()] = header.getLong(SECTION_CHECKSUMS + section.ordinal() * 8);
+        }
+        maxKNN = header.getInt(12);
+        minSim = header.getDouble(16);
+        lsim = header.getDouble(24);
+        bm25K = header.getDouble(32);
+        bm25B = header.getDouble(40);
+        avgDoclen = header.getDouble(48);
+        numDocs = header.getInt(56);
+        numWords = header.getInt(60);
+        docLengths = sections.get(Section.DOC_LENGTHS);
+        docNorms = sections.get(Section.DOC_NORMS);
+        docIdOffsets = sections.get(Section.DOC_ID_OFFSETS);
+        docIdBytes = sections.get(Section.DOC_ID_BYTES);
+        words = sections.get(Section.WORDS);
+        idf = sections.get(Section.IDF);
+        idfsem = sections.get(Section.IDFSEM);
+        tfOffsets = sections.get(Section.TF_OFFSETS);
+        tfDocs = sections.get(Section.TF_DOCS);
+        tfValues = sections.get(Section.TF_VALUES);
+        tfsemOffsets = sections.get(Section.TFSEM_OFFSETS);
+        tfsemDocs = sections.get(Section.TFSEM_DOCS);
+        tfsemValues = sections.get(Section.TFSEM_VALUES);
+    }
+
+    /**
+     * Maps the snapshot, verifies the version and the header checksum and refuses it if it was built with
+     * other parameters. The sections are not read (see verify).
+     */
+    public static IndexSnapshot open(Path file, int maxKNN, double minSim, double lsim) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getLong(0) != MAGIC) {
+                throw new IOException(file + " is not an index snapshot");
+            }
+            if (header.getInt(8) != VERSION) {
+                throw new IOException("Snapshot version " + header.getInt(8) + " is not supported (expected " + VERSION
+                        + "), delete " + file + " to rebuild it");
+            }
+            if (header.getLong(64) != headerChecksum(header)) {
+                throw new IOException("Snapshot " + file + " is corrupted (header checksum mismatch)");
+            }
+            if (header.getInt(12) != maxKNN || header.getDouble(16) != minSim || header.getDouble(24) != lsim) {
+                throw new IOException("Snapshot was built with maxKNN=" + header.getInt(12) + ", minSim=" + header.getDouble(16)
+                        + ", lsim=" + header.getDouble(24) + " but maxKNN=" + maxKNN + ", minSim=" + minSim + ", lsim=" + lsim + " are set");
+            }
+            if (header.getLong(72) != size) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            Map<Section, MappedSection> sections = new EnumMap<>(Section.class);
+            for (Section section : Section.values()) {
+                long offset = header.getLong(SECTION_TABLE + section.ordinal() * 16);
+                long length = header.getLong(SECTION_TABLE + 8 + section.ordinal() * 16);
+                sections.put(section, new MappedSection(channel, offset, length, section.entryBytes));
+            }
+            return new IndexSnapshot(header, sections);
+        }
+    }
+
+    /**
+     * Reads every section and compares its checksum with the one in the header.
+     */
+    public void verify() throws IOException {
+        for (Section section : Section.values()) {
+            CRC32C crc = new CRC32C();
+            sections.get(section).update(crc);
+            if (crc.getValue() != checksums[section.ordinal()]) {
+                throw new IOException("Snapshot is corrupted (checksum mismatch of " + section + ")");
+            }
+        }
+    }
+
+    /**
+     * Runs verify on a daemon thread; the future fails with the IOException of a corrupted section.
+     */
+    public CompletableFuture<Void> verifyInBackground() {
+        CompletableFuture<Void> verified = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                verify();
+                verified.complete(null);
+            } catch (IOException | RuntimeException e) {
+                verified.completeExceptionally(e);
+            }
+        }, "bm25-snapshot-verify");
+        thread.setDaemon(true);
+        thread.start();
+        return verified;
+    }
+
+    /**
+     * The CRC32C of the header with the checksum field (offset 64) set to 0.
+     */
+    private static long headerChecksum(ByteBuffer header) {
+        byte[] bytes = new byte[HEADER_SIZE];
+        header.get(0, bytes);
+        Arrays.fill(bytes, 64, 72, (byte) 0);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the snapshot of the database tables (words, documents, tf, tfsem) built with the given parameters.
+     * The tables are read with cursors in one REPEATABLE READ transaction and every section is streamed to its place in
+     * the file through a small buffer while its checksum is computed, so the heap holds only the words (the vocabulary).
+     * The sizes of the sections come from COUNT(*) queries; document ordinals are numbered by the database (ORDER BY id).
+     * The file is written next to the target and renamed when it is complete.
+     */
+    public static void write(Connection c, Path file, int maxKNN, double minSim, double lsim, double k, double b) throws SQLException, IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(0, MAGIC);
+        header.putInt(8, VERSION);
+        header.putInt(12, maxKNN);
+        header.putDouble(16, minSim);
+        header.putDouble(24, lsim);
+        header.putDouble(32, k);
+        header.putDouble(40, b);
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        boolean autoCommit = c.getAutoCommit();
+        int isolation = c.getTransactionIsolation();
+        c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);// The counts and the scans see the same tables
+        c.setAutoCommit(false);// The PostgreSQL driver streams the rows with a cursor only inside a transaction
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             Statement st = c.createStatement()) {
+            st.setFetchSize(writeFetchSize);
+            double avgDoclen = TestBM25.getAvgDoclen(c);
+            header.putDouble(48, avgDoclen);
+            long position = writeDocuments(st, channel, header, HEADER_SIZE, avgDoclen, k, b);
+            int[] words = new int[Math.toIntExact(count(st, "words"))];
+            SectionWriter wordSection = new SectionWriter(channel, position, 4L * words.length);
+            SectionWriter idf = new SectionWriter(channel, wordSection.end(), 8L * words.length);
+            SectionWriter idfsem = new SectionWriter(channel, idf.end(), 8L * words.length);
+            try (ResultSet rs = st.executeQuery("SELECT word, idf, idfsem FROM words ORDER BY word")) {
+                for (int w = 0; rs.next(); w++) {
+                    if (w == words.length) {
+                        throw new IOException("The words changed while the snapshot was written");
+                    }
+                    words[w] = rs.getInt("word");
+                    wordSection.putInt(words[w]);
+                    idf.putDouble(rs.getDouble("idf"));
+                    idfsem.putDouble(rs.getDouble("idfsem"));
+                }
+            }
+            wordSection.finish(header, Section.WORDS);
+            idf.finish(header, Section.IDF);
+            position = idfsem.finish(header, Section.IDFSEM);
+            header.putInt(60, words.length);
+            position = writePostings(st, channel, header, position, "tf", words, Section.TF_OFFSETS, Section.TF_DOCS, Section.TF_VALUES);
+            position = writePostings(st, channel, header, position, "tfsem", words, Section.TFSEM_OFFSETS, Section.TFSEM_DOCS, Section.TFSEM_VALUES);
+            if (channel.size() < position) {// The padding after the last section
+                writeFully(channel, ByteBuffer.allocate((int) (position - channel.size())), channel.size());
+            }
+            header.putLong(72, position);
+            header.putLong(64, headerChecksum(header));
+            writeFully(channel, header.clear(), 0);
+            channel.force(true);
+        } finally {
+            c.commit();
+            c.setAutoCommit(autoCommit);
+            c.setTransactionIsolation(isolation);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the document sections from position and returns the position after them.
+     */
+    private static long writeDocuments(Statement st, FileChannel channel, ByteBuffer header, long position,
+                                       double avgDoclen, double k, double b) throws SQLException, IOException {
+        int numDocs = Math.toIntExact(count(st, "documents"));
+        SectionWriter docLengths = new SectionWriter(channel, position, 4L * numDocs);
+        SectionWriter docNorms = new SectionWriter(channel, docLengths.end(), 4L * numDocs);
+        SectionWriter docIdOffsets = new SectionWriter(channel, docNorms.end(), 8L * (numDocs + 1));
+        SectionWriter docIdBytes = new SectionWriter(channel, docIdOffsets.end(), -1);
+        docIdOffsets.putLong(0);
+        try (ResultSet rs = st.executeQuery("SELECT id, doclen FROM documents ORDER BY id")) {
+            for (int d = 0; rs.next(); d++) {
+                if (d == numDocs) {
+                    throw new IOException("The documents changed while the snapshot was written");
+                }
+                int doclen = rs.getInt("doclen");
+                docLengths.putInt(doclen);
+                docNorms.putFloat((float) (k * (1 - b + (b * (doclen / avgDoclen)))));
+                docIdBytes.put(rs.getString("id").getBytes(StandardCharsets.UTF_8));
+                docIdOffsets.putLong(docIdBytes.length());
+            }
+        }
+        header.putInt(56, numDocs);
+        docLengths.finish(header, Section.DOC_LENGTHS);
+        docNorms.finish(header, Section.DOC_NORMS);
+        docIdOffsets.finish(header, Section.DOC_ID_OFFSETS);
+        return docIdBytes.finish(header, Section.DOC_ID_BYTES);
+    }
+
+    /**
+     * Writes the offsets, docs and values sections of the postings of a table from position and returns the
+     * position after them. The document ordinals are the row numbers of the documents ordered by id.
+     */
+    private static long writePostings(Statement st, FileChannel channel, ByteBuffer header, long position, String table,
+                                      int[] words, Section offsetSection, Section docSection, Section valueSection) throws SQLException, IOException {
+        long numPostings = count(st, table);
+        SectionWriter offsets = new SectionWriter(channel, position, 8L * (words.length + 1));
+        SectionWriter docs = new SectionWriter(channel, offsets.end(), 4 * numPostings);
+        SectionWriter values = new SectionWriter(channel, docs.end(), 8 * numPostings);
+        offsets.putLong(0);
+        long n = 0;
+        int w = 0;
+        try (ResultSet rs = st.executeQuery("SELECT t.word, o.ordinal, t." + table + " FROM " + table + " t " +
+                "JOIN (SELECT id, ROW_NUMBER() OVER (ORDER BY id) - 1 AS ordinal FROM documents) o ON o.id = t.id " +
+                "ORDER BY t.word, o.ordinal")) {
+            while (rs.next()) {
+                int word = rs.getInt("word");
+                while (words[w] != word) {
+                    offsets.putLong(n);
+                    w++;
+                }
+                if (n++ == numPostings) {
+                    throw new IOException("The table " + table + " changed while the snapshot was written");
+                }
+                docs.putInt(rs.getInt("ordinal"));
+                values.putDouble(rs.getDouble(table));
+            }
+        }
+        while (w < words.length) {
+            offsets.putLong(n);
+            w++;
+        }
+        offsets.finish(header, offsetSection);
+        docs.finish(header, docSection);
+        return values.finish(header, valueSection);
+    }
+
+    private static long count(Statement st, String table) throws SQLException {
+        try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Writes one section sequentially from its offset through a buffer of writeBufferSize bytes and computes its
+     * CRC32C. The length is checked against the expected one (-1 - not known, the section must be the last one
+     * written before the next offset is computed).
+     */
+    private static final class SectionWriter {
+        private final FileChannel channel;
+        private final long offset;
+        private final long expectedLength;
+        private final ByteBuffer buffer = ByteBuffer.allocate(writeBufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32C crc = new CRC32C();
+        private long length;
+
+        SectionWriter(FileChannel channel, long offset, long expectedLength) {
+            this.channel = channel;
+            this.offset = offset;
+            this.expectedLength = expectedLength;
+        }
+
+        /**
+         * The offset of the next section (aligned to 8 bytes), known in advance if the length is.
+         */
+        long end() {
+            return align(offset + expectedLength);
+        }
+
+        long length() {
+            return length + buffer.position();
+        }
+
+        void putInt(int value) throws IOException {
+            reserve(4).putInt(value);
+        }
+
+        void putFloat(float value) throws IOException {
+            reserve(4).putFloat(value);
+        }
+
+        void putLong(long value) throws IOException {
+            reserve(8).putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            reserve(8).putDouble(value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            for (int done = 0; done < bytes.length; ) {
+                int n = Math.min(bytes.length - done, reserve(1).remaining());
+                buffer.put(bytes, done, n);
+                done += n;
+            }
+        }
+
+        private ByteBuffer reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            writeFully(channel, buffer, offset + length);
+            length += buffer.limit();
+            buffer.clear();
+        }
+
+        /**
+         * Flushes the section, records its offset, length and checksum in the header and returns the offset of the next section.
+         */
+        long finish(ByteBuffer header, Section section) throws IOException {
+            flush();
+            if (expectedLength >= 0 && length != expectedLength) {
+                throw new IOException("The tables changed while the snapshot was written (" + section + ")");
+            }
+            header.putLong(SECTION_TABLE + section.ordinal() * 16, offset);
+            header.putLong(SECTION_TABLE + 8 + section.ordinal() * 16, length);
+            header.putLong(SECTION_CHECKSUMS + section.ordinal() * 8, crc.getValue());
+            return align(offset + length);
+        }
+
+        private static long align(long position) {
+            return (position + 7) & ~7L;
+        }
+    }
+
+    public int maxKNN() {
+        return maxKNN;
+    }
+
+    public double minSim() {
+        return minSim;
+    }
+
+    public double lsim() {
+        return lsim;
+    }
+
+    public double avgDoclen() {
+        return avgDoclen;
+    }
+
+    public int numDocs() {
+        return numDocs;
+    }
+
+    public int numWords() {
+        return numWords;
+    }
+
+    public String docId(int ordinal) {
+        long start = docIdOffsets.getLong(ordinal);
+        long end = docIdOffsets.getLong(ordinal + 1);
+        byte[] bytes = new byte[(int) (end - start)];
+        docIdBytes.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int docLength(int ordinal) {
+        return docLengths.getInt(ordinal);
+    }
+
+    /**
+     * The length norm k * (1 - b + b * doclen / avgDoclen) stored for (k, b), or NaN if the snapshot was built for other k, b.
+     */
+    public float docNorm(int ordinal, double k, double b) {
+        return k == bm25K && b == bm25B ? docNorms.getFloat(ordinal) : Float.NaN;
+    }
+
+    /**
+     * Returns the index of the word, or -1 if the word is not in the snapshot.
+     */
+    public int wordIndex(int word) {
+        int lo = 0;
+        int hi = numWords - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int w = words.getInt(mid);
+            if (w < word) lo = mid + 1;
+            else if (w > word) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    public int word(int wordIndex) {
+        return words.getInt(wordIndex);
+    }
+
+    public double idf(int wordIndex) {
+        return idf.getDouble(wordIndex);
+    }
+
+    public double idfsem(int wordIndex) {
+        return idfsem.getDouble(wordIndex);
+    }
+
+    public long postingsStart(int wordIndex, boolean semOn) {
+        return (semOn ? tfsemOffsets : tfOffsets).getLong(wordIndex);
+    }
+
+    public long postingsEnd(int wordIndex, boolean semOn) {
+        return (semOn ? tfsemOffsets : tfOffsets).getLong(wordIndex + 1);
+    }
+
+    public int postingDoc(long i, boolean semOn) {
+        return (semOn ? tfsemDocs : tfDocs).getInt(i);
+    }
+
+    public double postingValue(long i, boolean semOn) {
+        return (semOn ? tfsemValues : tfValues).getDouble(i);
+    }
+
+    /**
+     * The document ordinals of the postings i with i >>> CHUNK_BITS == chunk (posting i is the entry i & (CHUNK_ENTRIES - 1)).
+     */
+    public IntBuffer postingDocs(int chunk, boolean semOn) {
+        return (semOn ? tfsemDocs : tfDocs).ints[chunk];
+    }
+
+    /**
+     * The tf (tfsem) values of the postings i with i >>> CHUNK_BITS == chunk (posting i is the entry i & (CHUNK_ENTRIES - 1)).
+     */
+    public DoubleBuffer postingValues(int chunk, boolean semOn) {
+        return (semOn ? tfsemValues : tfValues).doubles[chunk];
+    }
+
+    /**
+     * A section mapped in chunks of CHUNK_ENTRIES entries of entryBytes bytes (one MappedByteBuffer holds at most
+     * 2 GB), with an int and float (4-byte entries) or a long and double (8-byte entries) view of every chunk.
+     */
+    private static final class MappedSection {
+        private static final int MASK = CHUNK_ENTRIES - 1;
+
+        private final ByteBuffer[] chunks;
+        private final IntBuffer[] ints;
+        private final FloatBuffer[] floats;
+        private final LongBuffer[] longs;
+        private final DoubleBuffer[] doubles;
+
+        MappedSection(FileChannel channel, long offset, long length, int entryBytes) throws IOException {
+            long chunkSize = (long) entryBytes << CHUNK_BITS;
+            int n = Math.toIntExact((length + chunkSize - 1) / chunkSize);
+            chunks = new ByteBuffer[n];
+            ints = new IntBuffer[entryBytes == 4 ? n : 0];
+            floats = new FloatBuffer[entryBytes == 4 ? n : 0];
+            longs = new LongBuffer[entryBytes == 8 ? n : 0];
+            doubles = new DoubleBuffer[entryBytes == 8 ? n : 0];
+            for (int i = 0; i < n; i++) {
+                long start = i * chunkSize;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(chunkSize, length - start))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                if (entryBytes == 4) {
+                    ints[i] = chunks[i].asIntBuffer();
+                    floats[i] = chunks[i].asFloatBuffer();
+                } else if (entryBytes == 8) {
+                    longs[i] = chunks[i].asLongBuffer();
+                    doubles[i] = chunks[i].asDoubleBuffer();
+                }
+            }
+        }
+
+        int getInt(long index) {
+            return ints[(int) (index >>> CHUNK_BITS)].get((int) index & MASK);
+        }
+
+        float getFloat(long index) {
+            return floats[(int) (index >>> CHUNK_BITS)].get((int) index & MASK);
+        }
+
+        long getLong(long index) {
+            return longs[(int) (index >>> CHUNK_BITS)].get((int) index & MASK);
+        }
+
+        double getDouble(long index) {
+            return doubles[(int) (index >>> CHUNK_BITS)].get((int) index & MASK);
+        }
+
+        /**
+         * Copies bytes.length bytes (entries of 1 byte) from the position, which may span chunks.
+         */
+        void get(long position, byte[] bytes) {
+            for (int done = 0; done < bytes.length; ) {
+                ByteBuffer chunk = chunks[(int) ((position + done) >>> CHUNK_BITS)];
+                int at = (int) (position + done) & MASK;
+                int n = Math.min(bytes.length - done, chunk.capacity() - at);
+                chunk.get(at, bytes, done, n);
+                done += n;
+            }
+        }
+
+        void update(CRC32C crc) {
+            for (ByteBuffer chunk : chunks) {
+                crc.update(chunk.duplicate());
+            }
+        }
+    }
+}
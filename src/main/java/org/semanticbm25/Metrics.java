@@ -0,0 +1,281 @@
+package org.semanticbm25;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects the latency of the indexing and search stages, counters and memory gauges.
+ * Collection is switched off by default (-Dsemanticbm25.metrics=true or setEnabled over JMX switches it on);
+ * when it is off, start() returns 0 and record()/add() return immediately.
+ *
+ * Usage:
+ * long t = Metrics.start();
+ * ... stage ...
+ * Metrics.record(Metrics.Stage.TF_FETCH, t);
+ *
+ * The values are exposed through the MBean org.semanticbm25:type=Metrics and as Prometheus text (prometheus()).
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public final class Metrics {
+    static volatile boolean enabled = Boolean.getBoolean("semanticbm25.metrics");
+
+    public enum Stage {
+        TOKENIZE, IDF_QUERY, TF_FETCH, SCORE, SORT,
+        INDEX_WORDS, INDEX_DOCUMENTS, INDEX_IDF, INDEX_TFSEM, INDEX_IDFSEM
+    }
+
+    /**
+     * SHARED_POSTINGS - the tokens of a query whose postings were already fetched for another query of the same batch
+     * (there is no cache between batches).
+     */
+    public enum Counter {
+        QUERIES, POSTINGS_READ, DOCUMENTS_SCORED, ROWS_WRITTEN, SHARED_POSTINGS, BUDGET_EXCEEDED
+    }
+
+    /**
+     * Upper bounds of the histogram buckets in microseconds: 1, 2, 4 ... 2^26 (about 67 seconds) and +Inf.
+     */
+    static final int BUCKETS = 28;
+
+    private static final Histogram[] histograms = new Histogram[Stage.values().length];
+    private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    static {
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new Histogram();
+        for (int i = 0; i < counters.length; i++) counters[i] = new LongAdder();
+    }
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Returns the start time of a stage, or 0 when the metrics are off.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    public static void record(Stage stage, long startNanos) {
+        if (startNanos != 0L) {
+            histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public static void add(Counter counter, long n) {
+        if (enabled) {
+            counters[counter.ordinal()].add(n);
+        }
+    }
+
+    public static void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    public static long count(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Returns the approximate quantile (0..1) of the stage latency in milliseconds (the upper bound of the bucket).
+     */
+    public static double quantileMillis(Stage stage, double q) {
+        return histograms[stage.ordinal()].quantileMicros(q) / 1000.0;
+    }
+
+    public static void reset() {
+        for (Histogram histogram : histograms) histogram.reset();
+        for (LongAdder counter : counters) counter.reset();
+    }
+
+    public static long heapUsedBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Non-heap memory of the JVM (metaspace, code cache) plus direct and mapped buffers.
+     */
+    public static long offHeapUsedBytes() {
+        long used = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage().getUsed();
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            used += pool.getMemoryUsed();
+        }
+        return used;
+    }
+
+    /**
+     * Returns all the metrics in the Prometheus text exposition format.
+     */
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE semanticbm25_stage_seconds histogram\n");
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = histograms[stage.ordinal()];
+            String name = stage.name().toLowerCase(Locale.ROOT);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += histogram.buckets[i].sum();
+                String le = i == BUCKETS - 1 ? "+Inf" : String.valueOf((1L << i) / 1e6);
+                sb.append("semanticbm25_stage_seconds_bucket{stage=\"").append(name).append("\",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append("semanticbm25_stage_seconds_sum{stage=\"").append(name).append("\"} ").append(histogram.sumNanos.sum() / 1e9).append('\n');
+            sb.append("semanticbm25_stage_seconds_count{stage=\"").append(name).append("\"} ").append(cumulative).append('\n');
+        }
+        for (Counter counter : Counter.values()) {
+            String name = "semanticbm25_" + counter.name().toLowerCase(Locale.ROOT) + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(count(counter)).append('\n');
+        }
+        sb.append("# TYPE semanticbm25_heap_used_bytes gauge\n");
+        sb.append("semanticbm25_heap_used_bytes ").append(heapUsedBytes()).append('\n');
+        sb.append("# TYPE semanticbm25_offheap_used_bytes gauge\n");
+        sb.append("semanticbm25_offheap_used_bytes ").append(offHeapUsedBytes()).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Registers the MBean org.semanticbm25:type=Metrics (repeated calls are ignored).
+     */
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.semanticbm25:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsBean(), name);
+            }
+        } catch (JMException e) {
+            System.err.println("Metrics MBean registration error: " + e.getMessage());
+        }
+    }
+
+    static final class Histogram {
+        final LongAdder[] buckets = new LongAdder[BUCKETS];
+        final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            long micros = Math.max(1L, (nanos + 999) / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));// ceil(log2(micros))
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        double quantileMicros(double q) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) return 0.0;
+            long rank = (long) Math.ceil(q * total);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i];
+                if (cumulative >= rank) return 1L << i;
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) bucket.reset();
+            sumNanos.reset();
+        }
+    }
+
+    public interface MetricsMXBean {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        Map<String, Long> getCounters();
+
+        Map<String, Double> getStageP50Millis();
+
+        Map<String, Double> getStageP99Millis();
+
+        long getHeapUsedBytes();
+
+        long getOffHeapUsedBytes();
+
+        String getPrometheusText();
+
+        void reset();
+    }
+
+    static final class MetricsBean implements MetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return Metrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean on) {
+            Metrics.setEnabled(on);
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            Map<String, Long> values = new TreeMap<>();
+            for (Counter counter : Counter.values()) values.put(counter.name(), count(counter));
+            return values;
+        }
+
+        @Override
+        public Map<String, Double> getStageP50Millis() {
+            return quantiles(0.5);
+        }
+
+        @Override
+        public Map<String, Double> getStageP99Millis() {
+            return quantiles(0.99);
+        }
+
+        private Map<String, Double> quantiles(double q) {
+            Map<String, Double> values = new TreeMap<>();
+            for (Stage stage : Stage.values()) values.put(stage.name(), quantileMillis(stage, q));
+            return values;
+        }
+
+        @Override
+        public long getHeapUsedBytes() {
+            return heapUsedBytes();
+        }
+
+        @Override
+        public long getOffHeapUsedBytes() {
+            return offHeapUsedBytes();
+        }
+
+        @Override
+        public String getPrometheusText() {
+            return prometheus();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
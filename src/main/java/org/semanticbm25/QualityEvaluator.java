@@ -0,0 +1,152 @@
+package org.semanticbm25;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * This class computes all the quality metrics of TestBM25 (Precision, Recall, F1, AP, nDCG, Score, Score2)
+ * for both algorithms of every query in one scan of each result list, at several cutoffs at once.
+ * Queries are evaluated in parallel; the values are the same as the ones of precisionAtK, recallAtK, f1AtK,
+ * averagePrecision, ndcgAtK, score and score2 of TestBM25.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class QualityEvaluator {
+    private static final double LOG2 = Math.log(2);
+
+    /**
+     * The metrics of one result list. The arrays are indexed like the cutoffs passed to evaluate.
+     * score and score2 are computed over the whole list, as in TestBM25.score and TestBM25.score2.
+     */
+    public static class ListMetrics {
+        public final double[] precision;
+        public final double[] recall;
+        public final double[] f1;
+        public final double[] averagePrecision;
+        public final double[] ndcg;
+        public double score;
+        public double score2;
+
+        ListMetrics(int cutoffs) {
+            precision = new double[cutoffs];
+            recall = new double[cutoffs];
+            f1 = new double[cutoffs];
+            averagePrecision = new double[cutoffs];
+            ndcg = new double[cutoffs];
+        }
+    }
+
+    /**
+     * The metrics of one query for algorithm A (resultsA) and algorithm B (resultsB).
+     */
+    public static class QueryMetrics {
+        public final ListMetrics a;
+        public final ListMetrics b;
+
+        QueryMetrics(ListMetrics a, ListMetrics b) {
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    /**
+     * Evaluates every query at the given cutoffs (in any order). The result is in the order of the queries.
+     */
+    public static QueryMetrics[] evaluate(List<TestBM25.QueryResult> queries, int... cutoffs) {
+        return IntStream.range(0, queries.size())
+                .parallel()
+                .mapToObj(i -> evaluate(queries.get(i), cutoffs))
+                .toArray(QueryMetrics[]::new);
+    }
+
+    public static QueryMetrics evaluate(TestBM25.QueryResult qr, int... cutoffs) {
+        double[] idcg = idcgAtCutoffs(qr.relevance, cutoffs);
+        return new QueryMetrics(evaluate(qr.resultsA, qr.relevance, idcg, cutoffs), evaluate(qr.resultsB, qr.relevance, idcg, cutoffs));
+    }
+
+    static ListMetrics evaluate(List<String> retrieved, Map<String, Integer> relevance, double[] idcg, int[] cutoffs) {
+        ListMetrics m = new ListMetrics(cutoffs.length);
+        int[] order = sortedOrder(cutoffs);
+        long totalRelevant = relevance.size();
+        int size = retrieved.size();
+        int hit = 0;
+        int score = 0;
+        int score2 = 0;
+        double sumPrec = 0.0;
+        double dcg = 0.0;
+        int next = 0;// The next cutoff (in ascending order) to fill
+
+        for (int i = 0; i < size; i++) {
+            while (next < order.length && cutoffs[order[next]] <= i) {
+                fill(m, order[next], i, hit, sumPrec, dcg, totalRelevant, idcg);
+                next++;
+            }
+            Integer rel = relevance.get(retrieved.get(i));
+            if (rel == null) {
+                continue;
+            }
+            score += rel;
+            if (rel == 2) score2++;
+            if (next < order.length) {
+                hit++;
+                sumPrec += (double) hit / (i + 1);
+                if (rel > 0) {
+                    dcg += (Math.pow(2.0, rel) - 1.0) / (Math.log(i + 2) / LOG2);
+                }
+            }
+        }
+        for (; next < order.length; next++) {
+            fill(m, order[next], Math.max(0, Math.min(size, cutoffs[order[next]])), hit, sumPrec, dcg, totalRelevant, idcg);
+        }
+        m.score = size == 0 ? 0.0 : score;
+        m.score2 = size == 0 ? 0.0 : score2;
+        return m;
+    }
+
+    private static void fill(ListMetrics m, int c, int n, int hit, double sumPrec, double dcg, long totalRelevant, double[] idcg) {
+        double p = n == 0 ? 0.0 : (double) hit / n;
+        double r = totalRelevant == 0 ? 0.0 : (double) hit / (double) totalRelevant;
+        m.precision[c] = p;
+        m.recall[c] = r;
+        m.f1[c] = (p + r) == 0.0 ? 0.0 : 2 * p * r / (p + r);
+        m.averagePrecision[c] = totalRelevant == 0 ? 0.0 : sumPrec / (double) totalRelevant;
+        m.ndcg[c] = idcg[c] == 0.0 ? 0.0 : dcg / idcg[c];
+    }
+
+    /**
+     * IDCG for every cutoff from one sort of the relevance values.
+     */
+    static double[] idcgAtCutoffs(Map<String, Integer> relevance, int[] cutoffs) {
+        int[] scores = relevance.values().stream().mapToInt(Integer::intValue).filter(v -> v > 0).sorted().toArray();
+        double[] prefix = new double[scores.length + 1];
+        for (int i = 0; i < scores.length; i++) {
+            int rel = scores[scores.length - 1 - i];
+            prefix[i + 1] = prefix[i] + (Math.pow(2.0, rel) - 1.0) / (Math.log(i + 2) / LOG2);
+        }
+        double[] idcg = new double[cutoffs.length];
+        for (int c = 0; c < cutoffs.length; c++) {
+            idcg[c] = prefix[Math.max(0, Math.min(scores.length, cutoffs[c]))];
+        }
+        return idcg;
+    }
+
+    private static int[] sortedOrder(int[] cutoffs) {
+        return IntStream.range(0, cutoffs.length)
+                .boxed()
+                .sorted((c1, c2) -> Integer.compare(cutoffs[c1], cutoffs[c2]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Returns a copy of the cutoffs in ascending order without duplicates.
+     */
+    static int[] normalize(int... cutoffs) {
+        return Arrays.stream(cutoffs).distinct().sorted().toArray();
+    }
+}
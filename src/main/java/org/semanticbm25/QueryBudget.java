@@ -0,0 +1,157 @@
+package org.semanticbm25;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class limits the work of one query: a deadline and a maximum number of postings.
+ * The budgeted scoring (computeBM25Scores and computeBM25ScoresBatch with budgets, of TestBM25 and SnapshotSearcher)
+ * reads the postings of the words in descending order of idf and stops reading for a query when its budget runs out,
+ * so the partial scores contain the most valuable words. Every query of a batch has its own budget.
+ * A running JDBC statement is cancelled (Statement.cancel) at the deadline. The TopDocuments of a query that ran out
+ * of budget are not complete (Metrics.Counter.BUDGET_EXCEEDED is counted by the scoring where the budget runs out).
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class QueryBudget {
+    public static final QueryBudget UNLIMITED = new QueryBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bm25-query-budget");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long deadline;// System.nanoTime() of the deadline
+    private final long maxPostings;
+
+    private QueryBudget(long deadline, long maxPostings) {
+        this.deadline = deadline;
+        this.maxPostings = maxPostings;
+    }
+
+    /**
+     * A budget that starts now. 0 (or less) means no limit.
+     *
+     * @param timeMillis  the time of the query
+     * @param maxPostings the number of postings the query may read
+     */
+    public static QueryBudget of(long timeMillis, long maxPostings) {
+        if (timeMillis <= 0 && maxPostings <= 0) {
+            return UNLIMITED;
+        }
+        return new QueryBudget(timeMillis <= 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeMillis),
+                maxPostings <= 0 ? Long.MAX_VALUE : maxPostings);
+    }
+
+    /**
+     * This budget with the deadline moved to deadlineNanos (System.nanoTime()) when it ends later,
+     * e.g. the budget of a query capped at the timeout of its request.
+     */
+    public QueryBudget until(long deadlineNanos) {
+        if (deadline != Long.MAX_VALUE && deadline - deadlineNanos <= 0) {
+            return this;
+        }
+        return new QueryBudget(deadlineNanos, maxPostings);
+    }
+
+    /**
+     * The budget with the latest deadline (a statement shared by several queries runs until the last one expires).
+     */
+    public static QueryBudget latest(List<QueryBudget> budgets) {
+        QueryBudget latest = budgets.get(0);
+        for (QueryBudget budget : budgets) {
+            if (latest.deadline == Long.MAX_VALUE) break;
+            if (budget.deadline == Long.MAX_VALUE || budget.deadline - latest.deadline > 0) {
+                latest = budget;
+            }
+        }
+        return latest;
+    }
+
+    public static boolean allUnlimited(List<QueryBudget> budgets) {
+        for (QueryBudget budget : budgets) {
+            if (!budget.isUnlimited()) return false;
+        }
+        return true;
+    }
+
+    public boolean isUnlimited() {
+        return deadline == Long.MAX_VALUE && maxPostings == Long.MAX_VALUE;
+    }
+
+    public boolean expired() {
+        return deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Returns true when one more posting can be read after postingsRead postings.
+     */
+    public boolean allows(long postingsRead) {
+        return postingsRead < maxPostings;
+    }
+
+    /**
+     * The number of postings the query may read (Long.MAX_VALUE - no limit).
+     */
+    public long maxPostings() {
+        return maxPostings;
+    }
+
+    /**
+     * Cancels the statement at the deadline unless the returned Watch is closed first.
+     */
+    public Watch watch(Statement statement) {
+        return new Watch(statement, deadline);
+    }
+
+    /**
+     * The scheduled cancellation of a statement.
+     */
+    public static class Watch implements AutoCloseable {
+        private final Statement statement;
+        private final ScheduledFuture<?> task;
+        private boolean active = true;
+        private volatile boolean cancelled;
+
+        private Watch(Statement statement, long deadline) {
+            this.statement = statement;
+            this.task = deadline == Long.MAX_VALUE ? null
+                    : TIMER.schedule(this::cancel, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        private synchronized void cancel() {
+            if (!active) return;
+            cancelled = true;
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                System.err.println("Cancel statement error: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Returns true when the statement was cancelled at the deadline (an SQLException of the statement is then
+         * the cancellation, not an error).
+         */
+        public boolean cancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized void close() {
+            active = false;
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+    }
+}
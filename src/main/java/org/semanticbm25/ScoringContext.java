@@ -0,0 +1,162 @@
+package org.semanticbm25;
+
+import java.util.Arrays;
+
+/**
+ * This class accumulates the BM25 scores of one query in primitive arrays indexed by the document ordinal
+ * (instead of a list of (tf, idf) values per document id, see ListScoring of the benchmarks). One context per thread (forThread) is reused by all queries:
+ * reset is O(1) (a document belongs to the current query when its stamp is the current epoch), and only the documents
+ * touched by the query are visited when the scores are read, so scoring a query allocates nothing once the arrays
+ * have grown to the corpus size. The best documents are selected by ordinal (topK, TopDocuments.select).
+ *
+ * The weight of a word in a document is the BM25 weight of the list scoring:
+ * idf * ((tf * (k + 1)) / tf + norm), where norm = k * (1 - b + b * doclen / avgDoclen) depends only on the document.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public final class ScoringContext {
+    private static final ThreadLocal<ScoringContext> CONTEXT = ThreadLocal.withInitial(ScoringContext::new);
+
+    private double[] scores = new double[0];
+    private int[] stamps = new int[0];// stamps[doc] == epoch: the document is scored by the current query
+    private int epoch;
+    private int[] touched = new int[1024];// The documents of the current query in the order they were met
+    private int size;
+    private int[] heap = new int[16];
+    private int[] top = new int[16];// The documents selected by topK(k)
+
+    /**
+     * Returns the context of the current thread, reset for a query over numDocs documents.
+     */
+    public static ScoringContext forThread(int numDocs) {
+        ScoringContext context = CONTEXT.get();
+        context.reset(numDocs);
+        return context;
+    }
+
+    public void reset(int numDocs) {
+        if (scores.length < numDocs) {
+            int capacity = Math.max(numDocs, scores.length + (scores.length >> 1));
+            scores = new double[capacity];
+            stamps = new int[capacity];
+            epoch = 0;
+        }
+        if (++epoch == 0) {// After 2^32 queries the stamps are cleared once
+            Arrays.fill(stamps, 0);
+            epoch = 1;
+        }
+        size = 0;
+    }
+
+    public void add(int doc, double weight) {
+        if (stamps[doc] != epoch) {
+            stamps[doc] = epoch;
+            scores[doc] = weight;
+            if (size == touched.length) {
+                touched = Arrays.copyOf(touched, size * 2);
+            }
+            touched[size++] = doc;
+        } else {
+            scores[doc] += weight;
+        }
+    }
+
+    /**
+     * The number of documents scored by the current query.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The i-th document scored by the current query (0 <= i < size()).
+     */
+    public int doc(int i) {
+        return touched[i];
+    }
+
+    public double score(int doc) {
+        return scores[doc];
+    }
+
+    /**
+     * Writes the k best documents into out (at least min(k, size()) long) in descending order of score
+     * and returns their number. The selection is a min-heap of k documents over the touched documents.
+     */
+    public int topK(int k, int[] out) {
+        int n = Math.min(k, size);
+        if (n <= 0) return 0;
+        if (heap.length < n) {
+            heap = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            heap[i] = touched[i];
+            siftUp(i);
+        }
+        for (int i = n; i < size; i++) {
+            int doc = touched[i];
+            if (scores[doc] > scores[heap[0]]) {
+                heap[0] = doc;
+                siftDown(n);
+            }
+        }
+        for (int i = n - 1; i >= 0; i--) {// The smallest goes last
+            out[i] = heap[0];
+            heap[0] = heap[i];
+            siftDown(i);
+        }
+        return n;
+    }
+
+    /**
+     * Selects the k best documents into the context (see topK(int, int[])) and returns their number;
+     * the i-th of them is topDoc(i).
+     */
+    public int topK(int k) {
+        int n = Math.min(k, size);
+        if (top.length < n) {
+            top = new int[Math.max(n, top.length * 2)];
+        }
+        return topK(k, top);
+    }
+
+    public int topDoc(int i) {
+        return top[i];
+    }
+
+    public static double norm(double k, double b, double docLen, double avDocLen) {
+        return k * (1 - b + (b * (docLen / avDocLen)));
+    }
+
+    public static double weight(double idf, double tf, double k, double norm) {
+        return idf * ((tf * (k + 1)) / tf + norm);
+    }
+
+    private void siftUp(int i) {
+        int doc = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (scores[heap[parent]] <= scores[doc]) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = doc;
+    }
+
+    private void siftDown(int n) {
+        int doc = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) break;
+            if (child + 1 < n && scores[heap[child + 1]] < scores[heap[child]]) child++;
+            if (scores[doc] <= scores[heap[child]]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = doc;
+    }
+}
@@ -0,0 +1,356 @@
+package org.semanticbm25;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class starts an embedded HTTP server that answers BM25 and semantic BM25 queries over the tables
+ * created by TestBM25.createBM25Database (connection parameters are taken from TestBM25).
+ *
+ * GET /search?q=text&sem=true&k=10 - returns the top k documents as JSON.
+ * GET /health - returns "ok".
+ * GET /metrics - returns the Metrics in the Prometheus text format (-Dsemanticbm25.metrics=true switches collection on).
+ *
+ * When TestBM25.snapshotFile exists, queries are scored over the memory-mapped IndexSnapshot and no database
+ * connection is opened, so the server is ready as soon as the snapshot is mapped. The sections of the snapshot are
+ * verified in the background; if one is corrupted, /search and /health answer 503.
+ * Requests are handled on virtual threads when the JVM provides them (Java 21+), otherwise on a cached thread pool.
+ * Concurrent queries are grouped into micro-batches: a batch worker waits up to batchWindowMicros for more queries
+ * and scores them with computeBM25ScoresBatch (of TestBM25 or SnapshotSearcher), so the postings of shared tokens
+ * are fetched once. The best documents are selected by document ordinal for the largest k of the batch, and only
+ * their ids are looked up.
+ * Load shedding: a request is rejected with 503 when maxConcurrentRequests are already in flight, when the batch
+ * queue is full, or when it waited in the queue longer than maxQueueWaitMillis.
+ * Every query is scored within its own QueryBudget, which starts when the request is admitted and ends no later than
+ * requestTimeoutMillis: the words are read in descending order of idf, and when the budget runs out the best documents
+ * found so far are returned with "complete": false. The other queries of the micro-batch keep their own budgets.
+ *
+ * port - the HTTP port.
+ * maxConcurrentRequests - the number of requests admitted at the same time.
+ * maxQueuedQueries - the capacity of the batch queue.
+ * maxQueueWaitMillis - the longest time a query may wait in the queue before it is shed.
+ * requestTimeoutMillis - the longest time a request waits for its result (504 after that).
+ * maxBatchSize - the maximum number of queries in one micro-batch.
+ * batchWindowMicros - how long a batch worker waits to fill a micro-batch.
+ * batchWorkers - the number of batch workers (each one has its own database connection unless a snapshot is used).
+ * defaultTopK - the number of documents returned when k is not set.
+ * queryBudgetMillis - the time budget of a query, 0 - no limit (requestTimeoutMillis still caps it).
+ * queryBudgetPostings - the number of postings a query may read, 0 - no limit.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class SearchServer {
+    static int port = 8080;
+    static int maxConcurrentRequests = 256;
+    static int maxQueuedQueries = 1024;
+    static long maxQueueWaitMillis = 200;
+    static long requestTimeoutMillis = 2000;
+    static int maxBatchSize = 32;
+    static long batchWindowMicros = 2000;
+    static int batchWorkers = 4;
+    static int defaultTopK = 10;
+    static long queryBudgetMillis = 1000;
+    static long queryBudgetPostings = 0;
+
+    private final Encoding encoding = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+    private final Semaphore inFlight = new Semaphore(maxConcurrentRequests);
+    private final BlockingQueue<PendingQuery> queue = new ArrayBlockingQueue<>(maxQueuedQueries);
+    private final List<Connection> connections = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final SnapshotSearcher searcher;
+    private final CompletableFuture<Void> snapshotVerified;
+    private final double avgDoclen;
+    private HttpServer server;
+    private ExecutorService requestExecutor;
+
+    public static void main(String[] args) {
+        try {
+            Metrics.registerMBean();
+            SearchServer searchServer = new SearchServer();
+            searchServer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(searchServer::stop));
+            System.out.println("Search server started on port " + port);
+        } catch (SQLException e) {
+            System.err.println("SQLException error: " + e.getMessage());
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public SearchServer() throws SQLException, IOException {
+        if (TestBM25.snapshotFile != null && Files.exists(Paths.get(TestBM25.snapshotFile))) {
+            searcher = new SnapshotSearcher(IndexSnapshot.open(Paths.get(TestBM25.snapshotFile), TestBM25.maxKNN, TestBM25.minSim, TestBM25.lsim));
+            avgDoclen = searcher.snapshot().avgDoclen();
+            snapshotVerified = searcher.snapshot().verifyInBackground();
+            return;
+        }
+        searcher = null;
+        snapshotVerified = CompletableFuture.completedFuture(null);
+        for (int i = 0; i < batchWorkers; i++) {
+            connections.add(TestBM25.getConnection());
+        }
+        avgDoclen = TestBM25.getAvgDoclen(connections.get(0));
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < batchWorkers; i++) {
+            Connection connection = searcher == null ? connections.get(i) : null;
+            Thread worker = new Thread(() -> runBatchWorker(connection), "bm25-batch-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        requestExecutor = newRequestExecutor();
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(requestExecutor);
+        server.createContext("/search", this::handleSearch);
+        server.createContext("/health", exchange -> {
+            if (snapshotVerified.isCompletedExceptionally()) {
+                send(exchange, 503, "text/plain", snapshotError());
+            } else {
+                send(exchange, 200, "text/plain", "ok");
+            }
+        });
+        server.createContext("/metrics", exchange -> send(exchange, 200, "text/plain; version=0.0.4", Metrics.prometheus()));
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+        }
+        workers.forEach(Thread::interrupt);
+        if (requestExecutor != null) {
+            requestExecutor.shutdownNow();
+        }
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.err.println("Close connection error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Virtual threads appeared in Java 21, the project is compiled for Java 17, so the factory method is looked up at runtime.
+     */
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        Map<String, String> params;
+        try {
+            params = parseQuery(exchange.getRequestURI().getRawQuery());
+        } catch (IllegalArgumentException e) {// URLDecoder: a malformed escape, e.g. %zz
+            send(exchange, 400, "text/plain", "Malformed query string: " + e.getMessage());
+            return;
+        }
+        String query = params.get("q");
+        if (query == null || query.isBlank()) {
+            send(exchange, 400, "text/plain", "Parameter q is required");
+            return;
+        }
+        boolean semOn = Boolean.parseBoolean(params.getOrDefault("sem", "false"));
+        int topK;
+        try {
+            topK = Integer.parseInt(params.getOrDefault("k", String.valueOf(defaultTopK)));
+        } catch (NumberFormatException e) {
+            send(exchange, 400, "text/plain", "Parameter k must be a number");
+            return;
+        }
+
+        if (snapshotVerified.isCompletedExceptionally()) {
+            send(exchange, 503, "text/plain", snapshotError());
+            return;
+        }
+        if (!inFlight.tryAcquire()) {
+            send(exchange, 503, "text/plain", "Overloaded");
+            return;
+        }
+        try {
+            PendingQuery pending = new PendingQuery(query, semOn, topK, QueryBudget.of(queryBudgetMillis, queryBudgetPostings));
+            if (!queue.offer(pending)) {
+                send(exchange, 503, "text/plain", "Overloaded");
+                return;
+            }
+            TopDocuments top;
+            try {
+                top = pending.result.get(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                pending.result.cancel(false);
+                send(exchange, 504, "text/plain", "Timeout");
+                return;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RejectedExecutionException) {
+                    send(exchange, 503, "text/plain", "Overloaded");
+                } else {
+                    send(exchange, 500, "text/plain", "Search error: " + e.getCause().getMessage());
+                }
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "text/plain", "Interrupted");
+                return;
+            }
+
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < Math.min(topK, top.size()); i++) {// The batch selects the largest k of its queries
+                results.put(new JSONObject().put("id", top.id(i)).put("score", top.score(i)));
+            }
+            JSONObject response = new JSONObject()
+                    .put("query", query)
+                    .put("sem", semOn)
+                    .put("total", top.total())
+                    .put("complete", top.complete())
+                    .put("results", results);
+            send(exchange, 200, "application/json", response.toString());
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private String snapshotError() {
+        try {
+            snapshotVerified.join();
+            return "ok";
+        } catch (CompletionException e) {
+            return e.getCause().getMessage();
+        }
+    }
+
+    private void runBatchWorker(Connection connection) {
+        List<PendingQuery> batch = new ArrayList<>(maxBatchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(batchWindowMicros);
+                while (batch.size() < maxBatchSize) {
+                    PendingQuery next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executeBatch(connection, batch);
+            batch.clear();
+        }
+    }
+
+    private void executeBatch(Connection connection, List<PendingQuery> batch) {
+        long now = System.nanoTime();
+        List<PendingQuery> plain = new ArrayList<>();
+        List<PendingQuery> semantic = new ArrayList<>();
+        for (PendingQuery pending : batch) {
+            if (pending.result.isDone()) {
+                continue;// The client has already timed out
+            }
+            if (now - pending.enqueuedAt > TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis)) {
+                pending.result.completeExceptionally(new RejectedExecutionException("Queue wait exceeded"));
+                continue;
+            }
+            (pending.semOn ? semantic : plain).add(pending);
+        }
+        executeBatch(connection, plain, false);
+        executeBatch(connection, semantic, true);
+    }
+
+    private void executeBatch(Connection connection, List<PendingQuery> batch, boolean semOn) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<String> queries = new ArrayList<>(batch.size());
+        List<QueryBudget> budgets = new ArrayList<>(batch.size());
+        int topK = 0;
+        for (PendingQuery pending : batch) {
+            queries.add(pending.query);
+            budgets.add(pending.budget);
+            topK = Math.max(topK, pending.topK);
+        }
+        try {
+            List<TopDocuments> scores;
+            if (searcher != null) {
+                scores = searcher.computeBM25ScoresBatch(encoding, queries, TestBM25.BM25_k, TestBM25.BM25_b, semOn, budgets, topK);
+            } else {
+                scores = TestBM25.computeBM25ScoresBatch(encoding, queries, connection,
+                        TestBM25.BM25_k, TestBM25.BM25_b, avgDoclen, semOn, budgets, topK);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(scores.get(i));
+            }
+        } catch (SQLException | RuntimeException e) {
+            batch.forEach(pending -> pending.result.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Decodes the parameters of the query string.
+     *
+     * @throws IllegalArgumentException if a parameter is not correctly percent-encoded
+     */
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    static class PendingQuery {
+        final String query;
+        final boolean semOn;
+        final int topK;
+        final long enqueuedAt = System.nanoTime();
+        final QueryBudget budget;// Ends no later than the timeout of the request
+        final CompletableFuture<TopDocuments> result = new CompletableFuture<>();
+
+        PendingQuery(String query, boolean semOn, int topK, QueryBudget budget) {
+            this.query = query;
+            this.semOn = semOn;
+            this.topK = topK;
+            this.budget = budget.until(enqueuedAt + TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.semanticbm25;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The jdk.incubator.vector kernel of VectorSimilarity. The class is loaded only when the module is present.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+final class SimdKernel implements VectorSimilarity.Kernel {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(dim);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dim; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Four rows at a time, so every loaded lane of the query is used four times.
+     */
+    @Override
+    public void dotMany(float[] query, int queryOffset, float[] matrix, int dim, int rows, float[] out) {
+        int upper = SPECIES.loopBound(dim);
+        int r = 0;
+        for (; r + 3 < rows; r += 4) {
+            int o0 = r * dim, o1 = o0 + dim, o2 = o1 + dim, o3 = o2 + dim;
+            FloatVector acc0 = FloatVector.zero(SPECIES);
+            FloatVector acc1 = FloatVector.zero(SPECIES);
+            FloatVector acc2 = FloatVector.zero(SPECIES);
+            FloatVector acc3 = FloatVector.zero(SPECIES);
+            int i = 0;
+            for (; i < upper; i += SPECIES.length()) {
+                FloatVector q = FloatVector.fromArray(SPECIES, query, queryOffset + i);
+                acc0 = q.fma(FloatVector.fromArray(SPECIES, matrix, o0 + i), acc0);
+                acc1 = q.fma(FloatVector.fromArray(SPECIES, matrix, o1 + i), acc1);
+                acc2 = q.fma(FloatVector.fromArray(SPECIES, matrix, o2 + i), acc2);
+                acc3 = q.fma(FloatVector.fromArray(SPECIES, matrix, o3 + i), acc3);
+            }
+            float s0 = acc0.reduceLanes(VectorOperators.ADD);
+            float s1 = acc1.reduceLanes(VectorOperators.ADD);
+            float s2 = acc2.reduceLanes(VectorOperators.ADD);
+            float s3 = acc3.reduceLanes(VectorOperators.ADD);
+            for (; i < dim; i++) {
+                float q = query[queryOffset + i];
+                s0 += q * matrix[o0 + i];
+                s1 += q * matrix[o1 + i];
+                s2 += q * matrix[o2 + i];
+                s3 += q * matrix[o3 + i];
+            }
+            out[r] = s0;
+            out[r + 1] = s1;
+            out[r + 2] = s2;
+            out[r + 3] = s3;
+        }
+        for (; r < rows; r++) {
+            out[r] = dot(query, queryOffset, matrix, r * dim, dim);
+        }
+    }
+}
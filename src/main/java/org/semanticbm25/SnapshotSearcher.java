@@ -0,0 +1,261 @@
+package org.semanticbm25;
+
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.IntArrayList;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * This class computes BM25 scores over an IndexSnapshot in memory, without the database.
+ * The scores are the ones TestBM25.computeBM25Scores returns for the tables the snapshot was built from
+ * (the length norms are precomputed as floats for (k, b), so the scores may differ in the last float digits).
+ * The postings are accumulated in the ScoringContext of the thread by document ordinal, without a per-posting object,
+ * and only the ids of the topK best documents are read from the snapshot.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public class SnapshotSearcher {
+    static int budgetCheckInterval = 1024; //postings read between two checks of the deadline
+
+    private final IndexSnapshot snapshot;
+    private volatile DocNorms norms;// The norms of the last (k, b)
+
+    public SnapshotSearcher(IndexSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public IndexSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * The topK best documents of the query (semOn - semantic BM25).
+     */
+    public TopDocuments computeBM25Scores(Encoding encoding, String query, double k, double b, boolean semOn, int topK) {
+        Metrics.increment(Metrics.Counter.QUERIES);
+        long t = Metrics.start();
+        int[] words = wordIndexes(encoding.encode(query));
+        Metrics.record(Metrics.Stage.TOKENIZE, t);
+
+        t = Metrics.start();
+        ScoringContext context = ScoringContext.forThread(snapshot.numDocs());
+        Metrics.add(Metrics.Counter.POSTINGS_READ, score(words, k, b, semOn, context));
+        Metrics.record(Metrics.Stage.TF_FETCH, t);
+        return select(context, topK, true);
+    }
+
+    /**
+     * Adds the BM25 weights of the postings of the words (indexes of the snapshot) to the context.
+     * Nothing is allocated once the norms of (k, b) are computed.
+     *
+     * @return the number of postings read
+     */
+    public long score(int[] words, double k, double b, boolean semOn, ScoringContext context) {
+        float[] docNorms = norms(k, b);
+        long postingsRead = 0;
+        for (int w : words) {
+            double idf = snapshot.idf(w);
+            long start = snapshot.postingsStart(w, semOn);
+            int size = (int) (snapshot.postingsEnd(w, semOn) - start);// At most one posting per document
+            addPostings(start, size, semOn, idf, k, docNorms, context);
+            postingsRead += size;
+        }
+        return postingsRead;
+    }
+
+    /**
+     * Adds the BM25 weights of the postings [from, from + count) to the context, chunk by chunk of the snapshot.
+     */
+    private void addPostings(long from, int count, boolean semOn, double idf, double k, float[] docNorms, ScoringContext context) {
+        for (int done = 0; done < count; ) {
+            long i = from + done;
+            int chunk = (int) (i >>> IndexSnapshot.CHUNK_BITS);
+            int at = (int) i & (IndexSnapshot.CHUNK_ENTRIES - 1);
+            int end = at + Math.min(count - done, IndexSnapshot.CHUNK_ENTRIES - at);
+            IntBuffer docs = snapshot.postingDocs(chunk, semOn);
+            DoubleBuffer values = snapshot.postingValues(chunk, semOn);
+            for (int j = at; j < end; j++) {
+                int doc = docs.get(j);
+                context.add(doc, ScoringContext.weight(idf, values.get(j), k, docNorms[doc]));
+            }
+            done += end - at;
+        }
+    }
+
+    /**
+     * The indexes of the distinct words of the query that are in the snapshot
+     * (as "word = ANY (?)": every word of the query counts once).
+     */
+    public int[] wordIndexes(IntArrayList tokenIds) {
+        int[] tokens = new int[tokenIds.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = tokenIds.get(i);
+        }
+        Arrays.sort(tokens);
+        int n = 0;
+        int previous = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            int token = tokens[i];
+            if (i > 0 && token == previous) continue;
+            previous = token;
+            int w = snapshot.wordIndex(token);
+            if (w >= 0) tokens[n++] = w;// n <= i, the tokens still to read are not overwritten
+        }
+        return Arrays.copyOf(tokens, n);
+    }
+
+    /**
+     * The length norms k * (1 - b + b * doclen / avgDoclen) of all documents: the ones stored in the snapshot
+     * when it was built for (k, b), otherwise computed once and kept until other k, b are asked for.
+     */
+    float[] norms(double k, double b) {
+        DocNorms cached = norms;
+        if (cached == null || cached.k != k || cached.b != b) {
+            float[] values = new float[snapshot.numDocs()];
+            for (int d = 0; d < values.length; d++) {
+                float norm = snapshot.docNorm(d, k, b);
+                values[d] = Float.isNaN(norm) ? (float) ScoringContext.norm(k, b, snapshot.docLength(d), snapshot.avgDoclen()) : norm;
+            }
+            norms = cached = new DocNorms(k, b, values);
+        }
+        return cached.values;
+    }
+
+    /**
+     * Scores several queries; the result for each query is the one computeBM25Scores would return for it.
+     * The postings are read from the mapped snapshot by every query that contains them, nothing is copied.
+     */
+    public List<TopDocuments> computeBM25ScoresBatch(Encoding encoding, List<String> queries, double k, double b, boolean semOn, int topK) {
+        Metrics.add(Metrics.Counter.QUERIES, queries.size());
+        long t = Metrics.start();
+        List<int[]> queryWords = new ArrayList<>(queries.size());
+        Set<Integer> allWords = new HashSet<>();
+        for (String query : queries) {
+            int[] words = wordIndexes(encoding.encode(query));
+            queryWords.add(words);
+            for (int w : words) {
+                if (!allWords.add(w)) {
+                    Metrics.increment(Metrics.Counter.SHARED_POSTINGS);
+                }
+            }
+        }
+        Metrics.record(Metrics.Stage.TOKENIZE, t);
+
+        List<TopDocuments> results = new ArrayList<>(queries.size());
+        ScoringContext context = ScoringContext.forThread(snapshot.numDocs());
+        for (int[] words : queryWords) {
+            t = Metrics.start();
+            context.reset(snapshot.numDocs());
+            Metrics.add(Metrics.Counter.POSTINGS_READ, score(words, k, b, semOn, context));
+            Metrics.record(Metrics.Stage.TF_FETCH, t);
+            results.add(select(context, topK, true));
+        }
+        return results;
+    }
+
+    /**
+     * computeBM25Scores within a budget (see computeBM25ScoresBatch with budgets).
+     */
+    public TopDocuments computeBM25Scores(Encoding encoding, String query, double k, double b, boolean semOn, QueryBudget budget, int topK) {
+        return computeBM25ScoresBatch(encoding, List.of(query), k, b, semOn, List.of(budget), topK).get(0);
+    }
+
+    /**
+     * computeBM25ScoresBatch within a budget per query: the words of a query are read in descending order of idf and
+     * its reading stops when its deadline passes or its postings limit is reached; the documents met so far are scored.
+     */
+    public List<TopDocuments> computeBM25ScoresBatch(Encoding encoding, List<String> queries, double k, double b, boolean semOn, List<QueryBudget> budgets, int topK) {
+        if (QueryBudget.allUnlimited(budgets)) {
+            return computeBM25ScoresBatch(encoding, queries, k, b, semOn, topK);
+        }
+        List<TopDocuments> results = new ArrayList<>(queries.size());
+        Metrics.add(Metrics.Counter.QUERIES, queries.size());
+        long t = Metrics.start();
+        List<int[]> queryWords = new ArrayList<>(queries.size());
+        Set<Integer> allWords = new HashSet<>();
+        for (String query : queries) {
+            int[] words = wordIndexes(encoding.encode(query));
+            for (int i = 1; i < words.length; i++) {// Descending order of idf (a query has a few words)
+                for (int j = i; j > 0 && snapshot.idf(words[j - 1]) < snapshot.idf(words[j]); j--) {
+                    int w = words[j];
+                    words[j] = words[j - 1];
+                    words[j - 1] = w;
+                }
+            }
+            queryWords.add(words);
+            for (int w : words) {
+                if (!allWords.add(w)) {
+                    Metrics.increment(Metrics.Counter.SHARED_POSTINGS);
+                }
+            }
+        }
+        Metrics.record(Metrics.Stage.TOKENIZE, t);
+
+        float[] docNorms = norms(k, b);
+        ScoringContext context = ScoringContext.forThread(snapshot.numDocs());
+        for (int q = 0; q < queries.size(); q++) {
+            t = Metrics.start();
+            QueryBudget budget = budgets.get(q);
+            context.reset(snapshot.numDocs());
+            long postingsRead = 0;
+            boolean complete = true;
+            for (int w : queryWords.get(q)) {
+                if (budget.expired()) {
+                    complete = false;
+                    break;
+                }
+                long start = snapshot.postingsStart(w, semOn);
+                int size = (int) (snapshot.postingsEnd(w, semOn) - start);// At most one posting per document
+                int limit = (int) Math.min(size, budget.maxPostings() - postingsRead);
+                double idf = snapshot.idf(w);
+                for (int i = 0; i < limit; i += budgetCheckInterval) {
+                    if (i > 0 && budget.expired()) {
+                        limit = i;
+                        break;
+                    }
+                    addPostings(start + i, Math.min(budgetCheckInterval, limit - i), semOn, idf, k, docNorms, context);
+                }
+                postingsRead += limit;
+                if (limit < size) {
+                    complete = false;
+                    break;
+                }
+            }
+            if (!complete) {
+                Metrics.increment(Metrics.Counter.BUDGET_EXCEEDED);
+            }
+            Metrics.add(Metrics.Counter.POSTINGS_READ, postingsRead);
+            Metrics.record(Metrics.Stage.TF_FETCH, t);
+            results.add(select(context, topK, complete));
+        }
+        return results;
+    }
+
+    /**
+     * The topK best documents of the current query of the context; only their ids are read from the snapshot.
+     */
+    private TopDocuments select(ScoringContext context, int topK, boolean complete) {
+        long t = Metrics.start();
+        Metrics.add(Metrics.Counter.DOCUMENTS_SCORED, context.size());
+        TopDocuments top = TopDocuments.select(context, topK, snapshot::docId, complete);
+        Metrics.record(Metrics.Stage.SORT, t);
+        return top;
+    }
+
+    private static class DocNorms {
+        final double k;
+        final double b;
+        final float[] values;
+
+        DocNorms(double k, double b, float[] values) {
+            this.k = k;
+            this.b = b;
+            this.values = values;
+        }
+    }
+}
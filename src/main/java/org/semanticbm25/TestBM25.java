@@ -16,6 +16,8 @@ import org.jsoup.Jsoup;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
 import java.util.regex.Matcher;
@@ -31,11 +33,20 @@ import java.util.stream.Collectors;
  *
  * word2VecModelPath - the path to the file with the word2vec model.
  * fileFolderPath - the path to the folder with the tokenized documents.
+ * corpusFile - the path to a BEIR corpus.jsonl (plain, .gz or .zip). When it is set, the documents are read, tokenized
+ * and indexed in one stream (no Doc/DocToken files are needed) instead of fileFolderPath.
  * testQuestionFile - the path to the JSON file with the questions.
+ * snapshotFile - the path to the index snapshot. When it is set, testBM25 searches the memory-mapped snapshot instead of
+ * the database; the snapshot is written from the tables on the first run. A snapshot built with other maxKNN, minSim, lsim
+ * is refused (delete the file to rebuild it).
+ * indexMemoryBudget - When it is greater than 0, createBM25Database builds the tf, tfsem, idf and idfsem with sorted runs
+ * spilled to the temporary directory, so the memory does not depend on the corpus size.
  * maxKNN - This is a parameter that indicates how many semantically closest words need to be extracted from the model.
  * minSim - The minimum semantic value at which a word will be considered close in context.
  * lsim - The l parameter for calculating semantic TF.
  * TOP_k - Limits the number of documents in the response.
+ * EVAL_k - The cutoffs at which the metrics are printed (all of them are computed in one pass).
+ * queryBatchSize - The number of test queries scored together (computeBM25ScoresBatch).
  * BM25_k and BM25_b - BM25 Parameters.
  *
  * @author Aleksei Shrank
@@ -49,21 +60,32 @@ public class TestBM25 {
     static String PASSWORD = "postgres";
     static String word2VecModelPath = "\\BEIR NFCorpus\\model300Token.bin";
     static String fileFolderPath = "\\BEIR NFCorpus\\DocToken";
+    static String corpusFile = null; //BEIR corpus.jsonl (.gz, .zip); when set, it is indexed instead of fileFolderPath
     static String testQuestionFile = "\\BEIR NFCorpus\\PrepQueriesBM25RAW.json";
+    static String snapshotFile = null; //e.g. "\\BEIR NFCorpus\\index.snapshot"; search state for the warm start (see IndexSnapshot)
+    static long indexMemoryBudget = 0; //bytes, e.g. 512L << 20; when > 0 the index is built by external sort (see ExternalIndexBuilder)
 
     static int maxKNN = 100; //number of K semantics nearest
     static double minSim = 0.6; //minimum level of semantics
     static double lsim = 0.8;
     static int TOP_k = 10000000;
+    static int[] EVAL_k = {TOP_k}; //cutoffs of the metrics, e.g. {10, 100, 1000, TOP_k}
+    static int queryBatchSize = 64; //queries scored together, the postings of their tokens are fetched once
     static double BM25_k = 1.7;
     static double BM25_b = 0.75;
 
     public static void main(String[] args) {
         try {
+            if (Metrics.isEnabled()) {
+                Metrics.registerMBean();
+            }
             Connection c = getConnection();
             Word2Vec word2Vec = WordVectorSerializer.readWord2VecModel(word2VecModelPath);
             createBM25Database(word2Vec, c);
             testBM25(c);
+            if (Metrics.isEnabled()) {
+                System.out.println(Metrics.prometheus());
+            }
         } catch (SQLException e) {
             System.err.println("SQLException error: " + e.getMessage());
             throw new RuntimeException(e);
@@ -73,6 +95,13 @@ public class TestBM25 {
     }
 
     static void createBM25Database(Word2Vec word2Vec, Connection c) throws SQLException {
+        createBM25Database(EmbeddingMatrix.fromWordVectors(word2Vec), c);
+    }
+
+    /**
+     * Creates the tables from the documents and the word vectors of the model (the words are the token ids).
+     */
+    static void createBM25Database(EmbeddingMatrix embeddings, Connection c) throws SQLException {
         String sqlWords = "CREATE TABLE words (" +
                 "word INTEGER PRIMARY KEY," +
                 "idf DOUBLE PRECISION," +
@@ -97,72 +126,60 @@ public class TestBM25 {
         stmt.executeUpdate(sqlDocuments);
         stmt.executeUpdate(sqlTf);
 
+        long t = Metrics.start();
         PreparedStatement pstmtWord = c.prepareStatement("INSERT INTO words (word) VALUES (?) ");
-        Set<Integer> allWords = new HashSet<>(word2Vec.getVocab().words().stream().filter(word -> word.length() < 30).map(Integer::parseInt).collect(Collectors.toSet()));
+        BitSet allWords = new BitSet();
+        for (int row = 0; row < embeddings.size(); row++) {
+            if (embeddings.word(row).length() < 30) {
+                allWords.set(Integer.parseInt(embeddings.word(row)));
+            }
+        }
         ProgressBar pb = new ProgressBarBuilder()
                 .setTaskName("Words")
-                .setInitialMax(allWords.size())
+                .setInitialMax(allWords.cardinality())
                 .setStyle(ProgressBarStyle.ASCII)
                 .build();
-        for (int word : allWords) {
+        for (int word = allWords.nextSetBit(0); word >= 0; word = allWords.nextSetBit(word + 1)) {
             pb.step();
             pstmtWord.setInt(1, word);
             pstmtWord.addBatch();
         }
         pb.close();
         pstmtWord.executeLargeBatch();
+        Metrics.add(Metrics.Counter.ROWS_WRITTEN, allWords.cardinality());
+        Metrics.record(Metrics.Stage.INDEX_WORDS, t);
 
-        Pattern WORD_PATTERN = Pattern.compile("\\d+");
-        PreparedStatement pstmt = c.prepareStatement("INSERT INTO documents (id, doclen) VALUES (?, ?) " +
-                "ON CONFLICT (id) DO UPDATE SET doclen = EXCLUDED.doclen");
-
-        PreparedStatement pstmtTF = c.prepareStatement("INSERT INTO tf (id, word, tf) VALUES (?, ?, ?) " +
-                "ON CONFLICT (id, word) DO UPDATE SET tf = EXCLUDED.tf");
-
-        File[] files = new File(fileFolderPath).listFiles((dir, name) -> name.endsWith(".txt"));
-        ProgressBar pbi = new ProgressBarBuilder()
-                .setTaskName("Files")
-                .setInitialMax(files.length)
-                .setStyle(ProgressBarStyle.ASCII)
-                .build();
-        for (File file : files) {
-            String docId = file.toPath().getFileName().toString().replaceFirst("(?i)\\.txt$", "");
-            String content = null;
-            int wordCount = 0;
-            try {
-                content = Files.readString(file.toPath());
-                Matcher matcher = WORD_PATTERN.matcher(content);
-                Map<Integer, Integer> freq = new HashMap<>();
-                while (matcher.find()) {
-                    wordCount++;
-                    int w = Integer.parseInt(matcher.group().toLowerCase());
-                    freq.put(w, freq.getOrDefault(w, 0) + 1);
-                }
-                pstmt.setString(1, docId);
-                pstmt.setInt(2, wordCount);
-                pstmt.executeUpdate();
-
-                freq.forEach((word, count) -> {
-                    try {
-                        if (allWords.contains(word)) {
-                            pstmtTF.setString(1, docId);
-                            pstmtTF.setInt(2, word);
-                            pstmtTF.setInt(3, count);
-                            pstmtTF.addBatch();
-                        }
-                    } catch (SQLException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
-                pstmtTF.executeBatch();
+        String sqlTfSem = "CREATE TABLE tfsem (" +
+                "id TEXT," +
+                "word INTEGER," +
+                "tfsem DOUBLE PRECISION," +
+                "PRIMARY KEY (id, word)," +
+                "FOREIGN KEY (id) REFERENCES documents(id) ON DELETE CASCADE," +
+                "FOREIGN KEY (word) REFERENCES words(word) ON DELETE CASCADE" +
+                ")";
+        if (indexMemoryBudget > 0) {
+            stmt.executeUpdate(sqlTfSem);
+            try (ExternalIndexBuilder builder = new ExternalIndexBuilder(c, allWords, indexMemoryBudget, null)) {
+                indexDocuments(builder);
+                builder.buildTf();
+                builder.buildTfSem(embeddings, maxKNN, minSim, lsim);
             } catch (IOException e) {
                 throw new RuntimeException(e);
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
             }
-            pbi.step();
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_tf_word ON tf(word)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_tf_id ON tf(id)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_tf_id_word ON tf(id, word)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_tfsem_word ON tfsem(word)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_tfsem_id ON tfsem(id)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_tfsem_id_word ON tfsem(id, word)");
+            return;
+        }
+
+        try (DocumentIndexWriter indexWriter = new DocumentIndexWriter(c, allWords)) {
+            indexDocuments(indexWriter);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        pbi.close();
 
         stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_tf_word ON tf(word)");
         stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_tf_id ON tf(id)");
@@ -183,32 +200,30 @@ public class TestBM25 {
                 ")\n" +
                 "FROM document_count d, word_doc_counts wdc\n" +
                 "WHERE words.word = wdc.word;";
+        t = Metrics.start();
         stmt.executeUpdate(sqlIDF);
+        Metrics.record(Metrics.Stage.INDEX_IDF, t);
 
-
-        String sqlTfSem = "CREATE TABLE tfsem (" +
-                "id TEXT," +
-                "word INTEGER," +
-                "tfsem DOUBLE PRECISION," +
-                "PRIMARY KEY (id, word)," +
-                "FOREIGN KEY (id) REFERENCES documents(id) ON DELETE CASCADE," +
-                "FOREIGN KEY (word) REFERENCES words(word) ON DELETE CASCADE" +
-                ")";
         stmt.executeUpdate(sqlTfSem);
         PreparedStatement pstmtTFSem = c.prepareStatement("INSERT INTO tfsem (id, word, tfsem) VALUES (?, ?, ?) " +
                 "ON CONFLICT (id, word) DO UPDATE SET tfsem = EXCLUDED.tfsem");
 
         ProgressBar pbis = new ProgressBarBuilder()
                 .setTaskName("TFsem")
-                .setInitialMax(allWords.size())
+                .setInitialMax(allWords.cardinality())
                 .setStyle(ProgressBarStyle.ASCII)
                 .build();
-        for (int word : allWords) {
-            Collection<String> neighbors = word2Vec.wordsNearest(String.valueOf(word), maxKNN);
-            Set<Integer> nearestWords = new HashSet<>(neighbors.stream().map(Integer::parseInt).collect(Collectors.toSet()));
-            nearestWords = nearestWords.stream()
-                    .filter(e -> word2Vec.similarity(String.valueOf(word), String.valueOf(e)) > minSim)
-                    .collect(Collectors.toSet());
+        float[] similarities = new float[embeddings.size()];
+        for (int word = allWords.nextSetBit(0); word >= 0; word = allWords.nextSetBit(word + 1)) {
+            long tw = Metrics.start();
+            int row = embeddings.indexOf(String.valueOf(word));
+            embeddings.similarities(row, similarities);// The similarity of the word to the whole vocabulary in one pass
+            Set<Integer> nearestWords = new HashSet<>();
+            for (int neighbor : EmbeddingMatrix.nearest(similarities, embeddings.size(), row, maxKNN)) {
+                if (similarities[neighbor] > minSim) {
+                    nearestWords.add(Integer.parseInt(embeddings.word(neighbor)));
+                }
+            }
             nearestWords.add(word);
             if (nearestWords.isEmpty()) {
                 continue;
@@ -225,26 +240,23 @@ public class TestBM25 {
             ResultSet freqRs = stmt.executeQuery(freqQuery);
             Map<String, Double> docToSum = new HashMap<>();
             while (freqRs.next()) {
+                Metrics.increment(Metrics.Counter.POSTINGS_READ);
                 String docId = freqRs.getString("id");
                 int sqlword = freqRs.getInt("word");
                 double freq = freqRs.getDouble("tf");
-                double similar = word2Vec.similarity(String.valueOf(word), String.valueOf(sqlword));
+                double similar = similarities[embeddings.indexOf(String.valueOf(sqlword))];
                 double weighted = (word == sqlword ? freq : freq * lsim * similar);
                 docToSum.merge(docId, weighted, Double::sum);
             }
-            docToSum.forEach((did, tfsem) -> {
-                try {
-
-                    pstmtTFSem.setString(1, did);
-                    pstmtTFSem.setInt(2, word);
-                    pstmtTFSem.setDouble(3, tfsem);
-                    pstmtTFSem.addBatch();
-
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+            for (Map.Entry<String, Double> entry : docToSum.entrySet()) {
+                pstmtTFSem.setString(1, entry.getKey());
+                pstmtTFSem.setInt(2, word);
+                pstmtTFSem.setDouble(3, entry.getValue());
+                pstmtTFSem.addBatch();
+            }
             pstmtTFSem.executeBatch();
+            Metrics.add(Metrics.Counter.ROWS_WRITTEN, docToSum.size());
+            Metrics.record(Metrics.Stage.INDEX_TFSEM, tw);
             pbis.step();
         }
         pbis.close();
@@ -268,52 +280,134 @@ public class TestBM25 {
                 ")\n" +
                 "FROM document_count d, word_doc_counts wdc\n" +
                 "WHERE words.word = wdc.word;";
+        t = Metrics.start();
         stmt.executeUpdate(sqlIDFSem);
+        Metrics.record(Metrics.Stage.INDEX_IDFSEM, t);
+    }
+
+    /**
+     * Sends the documents of corpusFile (tokenized while reading) or of fileFolderPath to the sink.
+     */
+    static void indexDocuments(DocumentSink sink) throws SQLException, IOException {
+        if (corpusFile != null) {
+            Encoding encoding = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+            DocumentTokenizer.ingestCorpus(Paths.get(corpusFile), encoding, sink, null);
+        } else {
+            indexFiles(sink);
+        }
+    }
+
+    /**
+     * Indexes the tokenized documents of fileFolderPath (one .txt file per document, the file name is the id).
+     */
+    static void indexFiles(DocumentSink indexWriter) throws SQLException {
+        Pattern WORD_PATTERN = Pattern.compile("\\d+");
+        File[] files = new File(fileFolderPath).listFiles((dir, name) -> name.endsWith(".txt"));
+        ProgressBar pbi = new ProgressBarBuilder()
+                .setTaskName("Files")
+                .setInitialMax(files.length)
+                .setStyle(ProgressBarStyle.ASCII)
+                .build();
+        for (File file : files) {
+            long td = Metrics.start();
+            String docId = file.toPath().getFileName().toString().replaceFirst("(?i)\\.txt$", "");
+            String content = null;
+            int wordCount = 0;
+            try {
+                content = Files.readString(file.toPath());
+                Matcher matcher = WORD_PATTERN.matcher(content);
+                Map<Integer, Integer> freq = new HashMap<>();
+                while (matcher.find()) {
+                    wordCount++;
+                    int w = Integer.parseInt(matcher.group().toLowerCase());
+                    freq.put(w, freq.getOrDefault(w, 0) + 1);
+                }
+                indexWriter.addDocument(docId, wordCount, freq);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            Metrics.record(Metrics.Stage.INDEX_DOCUMENTS, td);
+            pbi.step();
+        }
+        pbi.close();
     }
 
     static void testBM25(Connection c) throws IOException, SQLException {
         List<QueryResult> queries = new ArrayList<>();
-        double avgDoclen = 0;
         JSONArray jsDataBM25 = new JSONArray(Jsoup.parse(new File(testQuestionFile)).text());
+        SnapshotSearcher searcher = snapshotFile == null ? null : new SnapshotSearcher(loadSnapshot(c));
+        double avgDoclen = searcher != null ? searcher.snapshot().avgDoclen() : getAvgDoclen(c);
+
+        Encoding encoding = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+        for (int from = 0; from < jsDataBM25.length(); from += queryBatchSize) {// The postings of a batch are fetched once
+            int to = Math.min(jsDataBM25.length(), from + queryBatchSize);
+            List<String> batch = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                batch.add(jsDataBM25.getJSONObject(i).getString("query"));
+            }
+            List<TopDocuments> answers = searcher != null
+                    ? searcher.computeBM25ScoresBatch(encoding, batch, BM25_k, BM25_b, false, TOP_k)
+                    : computeBM25ScoresBatch(encoding, batch, c, BM25_k, BM25_b, avgDoclen, false, TOP_k);
+            List<TopDocuments> semAnswers = searcher != null
+                    ? searcher.computeBM25ScoresBatch(encoding, batch, BM25_k, BM25_b, true, TOP_k)
+                    : computeBM25ScoresBatch(encoding, batch, c, BM25_k, BM25_b, avgDoclen, true, TOP_k);
+
+            for (int i = from; i < to; i++) {
+                JSONObject questBM25Obj = jsDataBM25.getJSONObject(i);
+                Map<String, Integer> relevantAns = new HashMap<>();
+
+                ArrayList<String> resultBM25 = ids(answers.get(i - from));
+                ArrayList<String> resultBM25Sem = ids(semAnswers.get(i - from));
+
+                JSONArray jsDataBM25Rdocs = questBM25Obj.getJSONArray("relevant_docs");
+                for (int u = 0; u < jsDataBM25Rdocs.length(); u++) {
+                    JSONObject jsDataBM25RdocsObj = jsDataBM25Rdocs.getJSONObject(u);
+                    relevantAns.put(jsDataBM25RdocsObj.getString("doc_id"), jsDataBM25RdocsObj.getInt("score"));
+                }
+
+                queries.add(new QueryResult(batch.get(i - from), resultBM25, resultBM25Sem, relevantAns));
+            }
+        }
+
+        compare(queries, EVAL_k);
+    }
+
+    /**
+     * Opens snapshotFile, or writes it from the database tables first if it does not exist.
+     * All the sections are verified before the evaluation uses them.
+     */
+    static IndexSnapshot loadSnapshot(Connection c) throws IOException, SQLException {
+        Path path = Paths.get(snapshotFile);
+        if (!Files.exists(path)) {
+            IndexSnapshot.write(c, path, maxKNN, minSim, lsim, BM25_k, BM25_b);
+        }
+        IndexSnapshot snapshot = IndexSnapshot.open(path, maxKNN, minSim, lsim);
+        snapshot.verify();
+        return snapshot;
+    }
+
+    /**
+     * Returns the ids of the documents in descending order of the score.
+     */
+    static ArrayList<String> ids(TopDocuments top) {
+        ArrayList<String> ids = new ArrayList<>(top.size());
+        for (int i = 0; i < top.size(); i++) {
+            ids.add(top.id(i));
+        }
+        return ids;
+    }
+
+    static double getAvgDoclen(Connection c) {
         try (Statement statement = c.createStatement();
              ResultSet resultSet = statement.executeQuery("SELECT AVG(doclen) AS avg_doclen FROM documents")) {
             if (resultSet.next()) {
-                avgDoclen = resultSet.getDouble("avg_doclen");
+                return resultSet.getDouble("avg_doclen");
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
-
-        for (int i = 0; i < jsDataBM25.length(); i++) {
-            JSONObject questBM25Obj = jsDataBM25.getJSONObject(i);
-            String query = questBM25Obj.getString("query");
-            Encoding encoding = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
-            Map<String, Double> Ans = computeBM25Scores(encoding, query, c, BM25_k, BM25_b, avgDoclen, false);
-            Map<String, Double> semAns = computeBM25Scores(encoding, query, c, BM25_k, BM25_b, avgDoclen, true);
-            Map<String, Integer> relevantAns = new HashMap<>();
-
-            ArrayList<String> resultBM25 = new ArrayList<>(Ans.entrySet().stream()
-                    .sorted((entry1, entry2) -> Double.compare(entry2.getValue(), entry1.getValue()))
-                    .limit(TOP_k)
-                    .map(Map.Entry::getKey)
-                    .collect(Collectors.toList()));
-
-            ArrayList<String> resultBM25Sem = new ArrayList<>(semAns.entrySet().stream()
-                    .sorted((entry1, entry2) -> Double.compare(entry2.getValue(), entry1.getValue()))
-                    .limit(TOP_k)
-                    .map(Map.Entry::getKey)
-                    .collect(Collectors.toList()));
-
-            JSONArray jsDataBM25Rdocs = questBM25Obj.getJSONArray("relevant_docs");
-            for (int u = 0; u < jsDataBM25Rdocs.length(); u++) {
-                JSONObject jsDataBM25RdocsObj = jsDataBM25Rdocs.getJSONObject(u);
-                relevantAns.put(jsDataBM25RdocsObj.getString("doc_id"), jsDataBM25RdocsObj.getInt("score"));
-            }
-
-            queries.add(new QueryResult(query, resultBM25, resultBM25Sem, relevantAns));
-        }
-
-        compare(queries, TOP_k);
+        return 0;
     }
 
     static Connection getConnection() throws SQLException {
@@ -331,98 +425,434 @@ public class TestBM25 {
         return DriverManager.getConnection(URL_DATABASE, props);
     }
 
-    public static Map<String, Double> computeBM25Scores(Encoding encoding, String query, Connection conn, double k, double b, double avg_doclen, boolean semOn) throws SQLException {
-        Map<String, List<TFIDFValue>> docTfIdfMap = new HashMap<>();
-        IntArrayList tokenIds = encoding.encode(query);
+    /**
+     * The BM25 (semOn - semantic BM25) scores of the documents that contain at least one word of the query.
+     * The query is a batch of one for computeBM25ScoresBatch; the topK best documents are returned.
+     */
+    public static TopDocuments computeBM25Scores(Encoding encoding, String query, Connection conn, double k, double b, double avg_doclen, boolean semOn, int topK) throws SQLException {
+        return computeBM25ScoresBatch(encoding, List.of(query), conn, k, b, avg_doclen, semOn, topK).get(0);
+    }
+
+    /**
+     * Scores several queries with two round-trips: one idf query and one postings query for the distinct tokens of
+     * all the queries, with the document length joined to every posting (so the document ids are not sent back to
+     * the database). The postings of every token are fetched once and shared by all queries that contain it.
+     * The result for each query is the one computeBM25Scores would return for it.
+     */
+    public static List<TopDocuments> computeBM25ScoresBatch(Encoding encoding, List<String> queries, Connection conn, double k, double b, double avg_doclen, boolean semOn, int topK) throws SQLException {
+        Metrics.add(Metrics.Counter.QUERIES, queries.size());
+        long t = Metrics.start();
+        List<Set<Integer>> queryTokens = new ArrayList<>(queries.size());
+        Set<Integer> allTokens = new HashSet<>();
+        for (String query : queries) {
+            Set<Integer> tokens = new HashSet<>(encoding.encode(query).boxed());
+            queryTokens.add(tokens);
+            for (int token : tokens) {
+                if (!allTokens.add(token)) {
+                    Metrics.increment(Metrics.Counter.SHARED_POSTINGS);// The postings of the token are already requested by another query
+                }
+            }
+        }
+        Metrics.record(Metrics.Stage.TOKENIZE, t);
 
-        Map<Integer, Double> idfMap = new HashMap<>();// Getting the idf for all the words in the query
+        t = Metrics.start();
+        Map<Integer, Double> idfMap = new HashMap<>();
         try (PreparedStatement ps = conn.prepareStatement(
-                //"SELECT word, "+(semOn ? "idfsem":"idf")+" FROM words WHERE word = ANY (?)")) {
                 "SELECT word, idf FROM words WHERE word = ANY (?)")) {
-            Array sqlArray = conn.createArrayOf("integer", tokenIds.boxed().toArray());
-            ps.setArray(1, sqlArray);
+            ps.setArray(1, conn.createArrayOf("integer", allTokens.toArray()));
             ResultSet rs = ps.executeQuery();
             while (rs.next()) {
-                //idfMap.put(rs.getInt("word"), rs.getDouble(semOn ? "idfsem":"idf"));
                 idfMap.put(rs.getInt("word"), rs.getDouble("idf"));
             }
         }
+        Metrics.record(Metrics.Stage.IDF_QUERY, t);
 
-        try (PreparedStatement ps = conn.prepareStatement( // We get tf (frequency) for documents (the query selects only those doc_ids that have records with these words)
-                "SELECT id, word, " + (semOn ? "tfsem" : "tf") + " FROM " + (semOn ? "tfsem" : "tf") + " WHERE word = ANY (?)")) {
-            Array sqlArray = conn.createArrayOf("integer", tokenIds.boxed().toArray());
-            ps.setArray(1, sqlArray);
+        t = Metrics.start();
+        long postingsRead = 0;
+        Map<Integer, PostingList> postings = new HashMap<>();// Shared postings of all the words of the batch
+        BatchDocuments documents = BatchDocuments.forThread();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT t.id, t.word, t." + (semOn ? "tfsem" : "tf") + ", d.doclen FROM " + (semOn ? "tfsem" : "tf") + " t " +
+                        "JOIN documents d ON d.id = t.id WHERE t.word = ANY (?)")) {
+            ps.setArray(1, conn.createArrayOf("integer", allTokens.toArray()));
             ResultSet rs = ps.executeQuery();
             while (rs.next()) {
-                String docId = rs.getString("id");
-                int word = rs.getInt("word");
-                double tf = rs.getDouble(semOn ? "tfsem" : "tf");
-                double idf = idfMap.getOrDefault(word, 0.0);
-                docTfIdfMap.computeIfAbsent(docId, d -> new ArrayList<>())
-                        .add(new TFIDFValue(word, tf, idf));
+                int doc = documents.ordinal(rs.getString("id"), rs.getInt("doclen"));
+                postings.computeIfAbsent(rs.getInt("word"), w -> new PostingList())
+                        .add(doc, rs.getDouble(semOn ? "tfsem" : "tf"));
+                postingsRead++;
             }
         }
+        Metrics.add(Metrics.Counter.POSTINGS_READ, postingsRead);
+        Metrics.record(Metrics.Stage.TF_FETCH, t);
+
+        t = Metrics.start();
+        double[] norms = documents.norms(k, b, avg_doclen);
+        ScoringContext context = ScoringContext.forThread(documents.size());
+        List<TopDocuments> results = new ArrayList<>(queries.size());
+        for (Set<Integer> tokens : queryTokens) {
+            results.add(scoreQuery(tokens, idfMap, postings, documents, norms, k, context, null, null, topK));
+        }
+        Metrics.record(Metrics.Stage.SCORE, t);
+        return results;
+    }
 
-        Map<String, Integer> docLengths = new HashMap<>();
-        try (PreparedStatement ps = conn.prepareStatement(// We get the length of all the documents that met
-                "SELECT id, doclen FROM documents WHERE id = ANY (?)")) {
-            Array docArray = conn.createArrayOf("text", docTfIdfMap.keySet().toArray());
-            ps.setArray(1, docArray);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                docLengths.put(rs.getString("id"), rs.getInt("doclen"));
+    /**
+     * computeBM25Scores within a budget (see computeBM25ScoresBatch with budgets).
+     */
+    public static TopDocuments computeBM25Scores(Encoding encoding, String query, Connection conn, double k, double b, double avg_doclen, boolean semOn, QueryBudget budget, int topK) throws SQLException {
+        return computeBM25ScoresBatch(encoding, List.of(query), conn, k, b, avg_doclen, semOn, List.of(budget), topK).get(0);
+    }
+
+    /**
+     * computeBM25ScoresBatch within a budget per query, with the same two round-trips: the postings of all the words
+     * of the batch are streamed by one query in descending order of idf (the document length is joined to every
+     * posting). A query stops taking postings when its own budget runs out, so one heavy query does not cut
+     * the others; its result is scored with the postings taken so far and marked incomplete.
+     * The rows of every word are limited in SQL to the largest postings limit of the queries that contain it,
+     * and they are streamed with a cursor: the statement is cancelled at the latest deadline, and the postings
+     * read before it are kept.
+     */
+    public static List<TopDocuments> computeBM25ScoresBatch(Encoding encoding, List<String> queries, Connection conn, double k, double b, double avg_doclen, boolean semOn, List<QueryBudget> budgets, int topK) throws SQLException {
+        if (QueryBudget.allUnlimited(budgets)) {
+            return computeBM25ScoresBatch(encoding, queries, conn, k, b, avg_doclen, semOn, topK);
+        }
+        Metrics.add(Metrics.Counter.QUERIES, queries.size());
+        long t = Metrics.start();
+        List<Set<Integer>> queryTokens = new ArrayList<>(queries.size());
+        Set<Integer> allTokens = new HashSet<>();
+        for (String query : queries) {
+            Set<Integer> tokens = new HashSet<>(encoding.encode(query).boxed());
+            queryTokens.add(tokens);
+            for (int token : tokens) {
+                if (!allTokens.add(token)) {
+                    Metrics.increment(Metrics.Counter.SHARED_POSTINGS);
+                }
             }
         }
+        Metrics.record(Metrics.Stage.TOKENIZE, t);
 
-        Map<String, Double> bm25Scores = new HashMap<>();// Counting the final BM25
-        for (var entry : docTfIdfMap.entrySet()) {
-            bm25Scores.put(entry.getKey(), getBM25WeightForDoc(entry.getValue(), k, b, avg_doclen, docLengths.getOrDefault(entry.getKey(), 1)));
+        QueryBudget latest = QueryBudget.latest(budgets);
+        QueryProgress[] progress = new QueryProgress[queries.size()];
+        for (int q = 0; q < progress.length; q++) {
+            progress[q] = new QueryProgress();
+        }
+        t = Metrics.start();
+        Map<Integer, Double> idfMap = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT word, idf FROM words WHERE word = ANY (?) AND idf IS NOT NULL");
+             QueryBudget.Watch watch = latest.watch(ps)) {
+            ps.setArray(1, conn.createArrayOf("integer", allTokens.toArray()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    idfMap.put(rs.getInt("word"), rs.getDouble("idf"));
+                }
+            } catch (SQLException e) {
+                if (!watch.cancelled()) throw e;
+                idfMap.clear();
+                for (QueryProgress queryProgress : progress) {
+                    queryProgress.exhaust(-1, 0);// Every deadline has passed, nothing is read
+                }
+            }
+        }
+        Metrics.record(Metrics.Stage.IDF_QUERY, t);
+
+        // The order of the stream: descending idf, then the word
+        List<Integer> words = new ArrayList<>(idfMap.keySet());
+        words.sort((word1, word2) -> {
+            int order = Double.compare(idfMap.get(word2), idfMap.get(word1));
+            return order != 0 ? order : Integer.compare(word1, word2);
+        });
+        Map<Integer, Integer> ranks = new HashMap<>();
+        for (int rank = 0; rank < words.size(); rank++) {
+            ranks.put(words.get(rank), rank);
+        }
+        List<List<Integer>> queriesOfWord = new ArrayList<>(words.size());
+        for (int rank = 0; rank < words.size(); rank++) {
+            queriesOfWord.add(new ArrayList<>());
+        }
+        int open = 0;// The queries that may still take postings
+        for (int q = 0; q < progress.length; q++) {
+            for (int token : queryTokens.get(q)) {
+                Integer rank = ranks.get(token);
+                if (rank != null) {
+                    queriesOfWord.get(rank).add(q);
+                    progress[q].lastRank = Math.max(progress[q].lastRank, rank);
+                }
+            }
+            if (!progress[q].exhausted && progress[q].lastRank >= 0) {
+                open++;
+            }
+        }
+        // The rows of a word are limited to the largest postings limit of its queries (null - no limit),
+        // plus one row that tells the query with that limit that the word was cut
+        Long[] wordLimits = new Long[words.size()];
+        for (int rank = 0; rank < words.size(); rank++) {
+            long limit = 0;
+            for (int q : queriesOfWord.get(rank)) {
+                limit = Math.max(limit, budgets.get(q).maxPostings());
+            }
+            wordLimits[rank] = limit == Long.MAX_VALUE ? null : limit + 1;
         }
 
-        return bm25Scores;
+        t = Metrics.start();
+        Map<Integer, PostingList> postings = new HashMap<>();
+        BatchDocuments documents = BatchDocuments.forThread();
+        long postingsRead = 0;
+        if (open > 0) {
+            String table = semOn ? "tfsem" : "tf";
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);// The PostgreSQL driver streams the rows with a cursor only inside a transaction
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT t.id, q.word, t." + table + ", d.doclen " +
+                            "FROM unnest(?::integer[], ?::bigint[]) WITH ORDINALITY AS q(word, max_rows, rank) " +
+                            "CROSS JOIN LATERAL (SELECT p.id, p." + table + " FROM " + table + " p WHERE p.word = q.word LIMIT q.max_rows) t " +
+                            "JOIN documents d ON d.id = t.id ORDER BY q.rank");
+                 QueryBudget.Watch watch = latest.watch(ps)) {
+                ps.setFetchSize(1000);// The rows read before a cancellation are kept
+                ps.setArray(1, conn.createArrayOf("integer", words.toArray()));
+                ps.setArray(2, conn.createArrayOf("bigint", wordLimits));
+                int rank = -1;
+                int currentWord = 0;
+                PostingList wordPostings = null;
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        int word = rs.getInt("word");
+                        if (wordPostings == null || word != currentWord) {
+                            currentWord = word;
+                            rank = ranks.get(word);
+                            wordPostings = new PostingList();
+                            postings.put(word, wordPostings);
+                            if (countOpen(progress, rank) == 0) break;// Every query is complete or out of budget
+                        }
+                        boolean taken = false;
+                        for (int q : queriesOfWord.get(rank)) {
+                            QueryProgress queryProgress = progress[q];
+                            if (queryProgress.exhausted) continue;
+                            QueryBudget budget = budgets.get(q);
+                            if (!budget.allows(queryProgress.postingsRead) || budget.expired()) {
+                                queryProgress.exhaust(rank, wordPostings.size);
+                                continue;
+                            }
+                            queryProgress.postingsRead++;
+                            taken = true;
+                        }
+                        if (taken) {
+                            wordPostings.add(documents.ordinal(rs.getString("id"), rs.getInt("doclen")), rs.getDouble(table));
+                            postingsRead++;
+                        }
+                    }
+                } catch (SQLException e) {
+                    if (!watch.cancelled()) throw e;
+                    for (QueryProgress queryProgress : progress) {// Cancelled at the deadline, the postings read before are kept
+                        if (!queryProgress.exhausted && queryProgress.lastRank >= Math.max(rank, 0)) {
+                            queryProgress.exhaust(rank, wordPostings == null ? 0 : wordPostings.size);
+                        }
+                    }
+                }
+            } finally {
+                conn.rollback();// Nothing was written; this also ends a transaction aborted by the cancellation
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+        Metrics.add(Metrics.Counter.POSTINGS_READ, postingsRead);
+        Metrics.record(Metrics.Stage.TF_FETCH, t);
+
+        t = Metrics.start();
+        double[] norms = documents.norms(k, b, avg_doclen);
+        ScoringContext context = ScoringContext.forThread(documents.size());
+        List<TopDocuments> results = new ArrayList<>(queries.size());
+        for (int q = 0; q < progress.length; q++) {
+            results.add(scoreQuery(queryTokens.get(q), idfMap, postings, documents, norms, k, context, ranks, progress[q], topK));
+        }
+        Metrics.record(Metrics.Stage.SCORE, t);
+        return results;
     }
 
-    static double getBM25WeightForDoc(List<TFIDFValue> tfidfList, double k, double b, double avDocLen, double docLen) {
-        double sum = 0;
-        for (TFIDFValue tfidf : tfidfList) {
-            sum += tfidf.idf * ((tfidf.tf * (k + 1)) / tfidf.tf + (k * (1 - b + (b * (docLen / avDocLen)))));
+    /**
+     * The number of queries that still take postings at the word of the given rank
+     * (the queries whose words all come before it are complete).
+     */
+    private static int countOpen(QueryProgress[] progress, int rank) {
+        int open = 0;
+        for (QueryProgress queryProgress : progress) {
+            if (!queryProgress.exhausted && queryProgress.lastRank >= rank) {
+                open++;
+            }
         }
-        return sum;
+        return open;
+    }
+
+    /**
+     * How far a budgeted query of a batch has read the stream of postings: all the postings of the words ranked
+     * before cutRank and the first cutCount postings of the word of cutRank.
+     */
+    static class QueryProgress {
+        int lastRank = -1;// The rank of the last word of the query in the stream
+        long postingsRead;
+        boolean exhausted;
+        int cutRank = Integer.MAX_VALUE;
+        int cutCount;
+
+        void exhaust(int rank, int count) {
+            exhausted = true;
+            cutRank = rank;
+            cutCount = count;
+            Metrics.increment(Metrics.Counter.BUDGET_EXCEEDED);
+        }
+
+        int limit(int rank, int size) {
+            return rank < cutRank ? size : rank == cutRank ? Math.min(cutCount, size) : 0;
+        }
+    }
+
+    /**
+     * Scores one query of a batch from the shared postings in the ScoringContext and selects its topK best documents
+     * (of a budgeted query, only the postings it has taken: progress and the ranks of the words, otherwise null).
+     */
+    private static TopDocuments scoreQuery(Set<Integer> tokens, Map<Integer, Double> idfMap, Map<Integer, PostingList> postings,
+                                           BatchDocuments documents, double[] norms, double k, ScoringContext context,
+                                           Map<Integer, Integer> ranks, QueryProgress progress, int topK) {
+        context.reset(documents.size());
+        for (int word : tokens) {
+            PostingList wordPostings = postings.get(word);
+            if (wordPostings == null) continue;
+            double idf = idfMap.getOrDefault(word, 0.0);
+            int size = progress == null ? wordPostings.size : progress.limit(ranks.get(word), wordPostings.size);
+            for (int i = 0; i < size; i++) {
+                int doc = wordPostings.docs[i];
+                context.add(doc, ScoringContext.weight(idf, wordPostings.values[i], k, norms[doc]));
+            }
+        }
+        Metrics.add(Metrics.Counter.DOCUMENTS_SCORED, context.size());
+        long t = Metrics.start();
+        TopDocuments top = TopDocuments.select(context, topK, documents.ids::get, progress == null || !progress.exhausted);
+        Metrics.record(Metrics.Stage.SORT, t);
+        return top;
     }
 
-    static class TFIDFValue {
-        int word;
-        double tf;
-        double idf;
+    /**
+     * The documents met by a batch: a dense ordinal for every document id (the index of the ScoringContext) and its length.
+     * One instance per thread (forThread) is cleared and reused by the batches, with its arrays.
+     */
+    static class BatchDocuments {
+        private static final ThreadLocal<BatchDocuments> DOCUMENTS = ThreadLocal.withInitial(BatchDocuments::new);
+
+        final Map<String, Integer> ordinals = new HashMap<>();
+        final List<String> ids = new ArrayList<>();
+        private int[] lengths = new int[64];
+        private double[] norms = new double[64];
+
+        static BatchDocuments forThread() {
+            BatchDocuments documents = DOCUMENTS.get();
+            documents.ordinals.clear();
+            documents.ids.clear();
+            return documents;
+        }
+
+        int ordinal(String docId, int docLen) {
+            Integer ordinal = ordinals.get(docId);
+            if (ordinal != null) {
+                return ordinal;
+            }
+            int doc = ids.size();
+            ordinals.put(docId, doc);
+            ids.add(docId);
+            if (doc == lengths.length) {
+                lengths = Arrays.copyOf(lengths, doc * 2);
+            }
+            lengths[doc] = docLen;
+            return doc;
+        }
 
-        TFIDFValue(int word, double tf, double idf) {
-            this.tf = tf;
-            this.idf = idf;
-            this.word = word;
+        int size() {
+            return ids.size();
+        }
+
+        /**
+         * The length norms of the documents by ordinal (valid until the next batch of the thread).
+         */
+        double[] norms(double k, double b, double avg_doclen) {
+            if (norms.length < ids.size()) {
+                norms = new double[lengths.length];
+            }
+            for (int doc = 0; doc < ids.size(); doc++) {
+                norms[doc] = ScoringContext.norm(k, b, lengths[doc], avg_doclen);
+            }
+            return norms;
+        }
+    }
+
+    /**
+     * The postings (document ordinal, tf) of one word in growing primitive arrays.
+     */
+    static class PostingList {
+        int[] docs = new int[8];
+        double[] values = new double[8];
+        int size;
+
+        void add(int doc, double value) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            docs[size] = doc;
+            values[size++] = value;
         }
     }
 
     public static void compare(List<QueryResult> queries, int k) {
+        compare(queries, new int[]{k});
+    }
+
+    /**
+     * Prints the comparison of the algorithms for every cutoff. All the metrics of both algorithms are computed
+     * by QualityEvaluator in one scan of each result list, queries in parallel.
+     */
+    public static void compare(List<QueryResult> queries, int[] cutoffs) {
         if (queries == null || queries.isEmpty()) {
             System.out.println("No data");
             return;
         }
+        int[] ks = QualityEvaluator.normalize(cutoffs);
+        QualityEvaluator.QueryMetrics[] metrics = QualityEvaluator.evaluate(queries, ks);
+        for (int c = 0; c < ks.length; c++) {
+            printComparison(metrics, c, ks[c]);
+        }
+    }
 
-        double pA = meanPrecisionAtK(queries, true, k);
-        double rA = meanRecallAtK(queries, true, k);
-        double f1A = meanF1AtK(queries, true, k);
-        double mapA = meanAveragePrecision(queries, true, k);
-        double ndcgA = meanNdcgAtK(queries, true, k);
-        double scoreA = sumScore(queries, true, k);
-        double score2A = sumScore2(queries, true, k);
-
-        double pB = meanPrecisionAtK(queries, false, k);
-        double rB = meanRecallAtK(queries, false, k);
-        double f1B = meanF1AtK(queries, false, k);
-        double mapB = meanAveragePrecision(queries, false, k);
-        double ndcgB = meanNdcgAtK(queries, false, k);
-        double scoreB = sumScore(queries, false, k);
-        double score2B = sumScore2(queries, false, k);
+    private static void printComparison(QualityEvaluator.QueryMetrics[] metrics, int c, int k) {
+        double pA = 0, rA = 0, f1A = 0, mapA = 0, ndcgA = 0, scoreA = 0, score2A = 0;
+        double pB = 0, rB = 0, f1B = 0, mapB = 0, ndcgB = 0, scoreB = 0, score2B = 0;
+        for (QualityEvaluator.QueryMetrics m : metrics) {
+            pA += m.a.precision[c];
+            rA += m.a.recall[c];
+            f1A += m.a.f1[c];
+            mapA += m.a.averagePrecision[c];
+            ndcgA += m.a.ndcg[c];
+            scoreA += m.a.score;
+            score2A += m.a.score2;
+
+            pB += m.b.precision[c];
+            rB += m.b.recall[c];
+            f1B += m.b.f1[c];
+            mapB += m.b.averagePrecision[c];
+            ndcgB += m.b.ndcg[c];
+            scoreB += m.b.score;
+            score2B += m.b.score2;
+        }
+        int n = metrics.length;
+        pA = pA / n;
+        rA = rA / n;
+        f1A = f1A / n;
+        mapA = mapA / n;
+        ndcgA = ndcgA / n;
+
+        pB = pB / n;
+        rB = rB / n;
+        f1B = f1B / n;
+        mapB = mapB / n;
+        ndcgB = ndcgB / n;
 
         System.out.printf("(top-%d)", k);
         System.out.printf("%-10s %-10s %-10s %-10s %-10s %-10s%n", "Алгоритм", "Precision", "Recall", "F1", "MAP", "nDCG");
@@ -437,7 +867,6 @@ public class TestBM25 {
         mapA = 0;
         ndcgA = 0;
         scoreA = 0;
-        score2A = 0;
 
         pB = 0;
         rB = 0;
@@ -445,40 +874,22 @@ public class TestBM25 {
         mapB = 0;
         ndcgB = 0;
         scoreB = 0;
-        score2B = 0;
         int tr = 0;
-        for (QueryResult qr : queries) {
-            double pqa = precisionAtK(qr.resultsA, qr.relevance, k);
-            double pqb = precisionAtK(qr.resultsB, qr.relevance, k);
-            double rqa = recallAtK(qr.resultsA, qr.relevance, k);
-            double rqb = recallAtK(qr.resultsB, qr.relevance, k);
-            double f1qa = f1AtK(qr.resultsA, qr.relevance, k);
-            double f1qb = f1AtK(qr.resultsB, qr.relevance, k);
-            double mapqa = averagePrecision(qr.resultsA, qr.relevance, k);
-            double mapqb = averagePrecision(qr.resultsB, qr.relevance, k);
-            double ndcga = ndcgAtK(qr.resultsA, qr.relevance, k);
-            double ndcgb = ndcgAtK(qr.resultsB, qr.relevance, k);
-            double scorea = score(qr.resultsA, qr.relevance, k);
-            double scoreb = score(qr.resultsB, qr.relevance, k);
-            double score2a = score2(qr.resultsA, qr.relevance, k);
-            double score2b = score2(qr.resultsB, qr.relevance, k);
-
-            if (scorea != scoreb) {
-                pA += pqa;
-                rA += rqa;
-                f1A += f1qa;
-                mapA += mapqa;
-                ndcgA += ndcga;
-                scoreA += scorea;
-                score2A += score2a;
-
-                pB += pqb;
-                rB += rqb;
-                f1B += f1qb;
-                mapB += mapqb;
-                ndcgB += ndcgb;
-                scoreB += scoreb;
-                score2B += score2b;
+        for (QualityEvaluator.QueryMetrics m : metrics) {
+            if (m.a.score != m.b.score) {
+                pA += m.a.precision[c];
+                rA += m.a.recall[c];
+                f1A += m.a.f1[c];
+                mapA += m.a.averagePrecision[c];
+                ndcgA += m.a.ndcg[c];
+                scoreA += m.a.score;
+
+                pB += m.b.precision[c];
+                rB += m.b.recall[c];
+                f1B += m.b.f1[c];
+                mapB += m.b.averagePrecision[c];
+                ndcgB += m.b.ndcg[c];
+                scoreB += m.b.score;
                 tr++;
             }
         }
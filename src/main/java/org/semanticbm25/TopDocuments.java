@@ -0,0 +1,69 @@
+package org.semanticbm25;
+
+import java.util.function.IntFunction;
+
+/**
+ * This class is the result of a query: its best documents in descending order of the score (at most the k asked for),
+ * the number of documents it scored, and complete - false when its QueryBudget ran out before all the postings
+ * were read. The documents are selected by document ordinal in the ScoringContext and only the ids of the
+ * selected ones are looked up, so the result does not grow with the number of documents scored.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public final class TopDocuments {
+    private final String[] ids;
+    private final double[] scores;
+    private final int total;
+    private final boolean complete;
+
+    private TopDocuments(String[] ids, double[] scores, int total, boolean complete) {
+        this.ids = ids;
+        this.scores = scores;
+        this.total = total;
+        this.complete = complete;
+    }
+
+    /**
+     * The k best documents of the current query of the context (docId - the id of a document ordinal).
+     */
+    static TopDocuments select(ScoringContext context, int k, IntFunction<String> docId, boolean complete) {
+        int n = context.topK(k);
+        String[] ids = new String[n];
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++) {
+            int doc = context.topDoc(i);
+            ids[i] = docId.apply(doc);
+            scores[i] = context.score(doc);
+        }
+        return new TopDocuments(ids, scores, context.size(), complete);
+    }
+
+    /**
+     * The number of documents returned.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    public String id(int i) {
+        return ids[i];
+    }
+
+    public double score(int i) {
+        return scores[i];
+    }
+
+    /**
+     * The number of documents scored by the query.
+     */
+    public int total() {
+        return total;
+    }
+
+    public boolean complete() {
+        return complete;
+    }
+}
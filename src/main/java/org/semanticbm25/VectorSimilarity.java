@@ -0,0 +1,102 @@
+package org.semanticbm25;
+
+/**
+ * This class computes dot products and cosine similarities of float vectors stored in contiguous arrays.
+ * When the JVM is started with --add-modules jdk.incubator.vector the SIMD kernel (SimdKernel) is used,
+ * otherwise (or with -Dsemanticbm25.simd=false) the scalar kernel. Both kernels give the same results
+ * up to the float rounding order.
+ *
+ * @author Aleksei Shrank
+ * @version 1.0
+ * @since 2025-09-01
+ */
+
+public final class VectorSimilarity {
+    static final Kernel SCALAR = new ScalarKernel();
+    static final Kernel KERNEL = selectKernel();
+
+    private VectorSimilarity() {
+    }
+
+    interface Kernel {
+        float dot(float[] a, int aOffset, float[] b, int bOffset, int dim);
+
+        /**
+         * out[r] = dot(query, row r of the matrix) for the rows from 0 to rows - 1.
+         */
+        void dotMany(float[] query, int queryOffset, float[] matrix, int dim, int rows, float[] out);
+    }
+
+    public static boolean isSimd() {
+        return KERNEL != SCALAR;
+    }
+
+    public static float dot(float[] a, float[] b) {
+        return KERNEL.dot(a, 0, b, 0, a.length);
+    }
+
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+        return KERNEL.dot(a, aOffset, b, bOffset, dim);
+    }
+
+    public static double cosine(float[] a, float[] b) {
+        double norms = Math.sqrt((double) dot(a, a) * dot(b, b));
+        return norms == 0.0 ? 0.0 : dot(a, b) / norms;
+    }
+
+    /**
+     * Scores one vector against every row of a row-major matrix (rows x dim). For normalized rows the result is the cosine similarity.
+     */
+    public static void dotMany(float[] query, int queryOffset, float[] matrix, int dim, int rows, float[] out) {
+        KERNEL.dotMany(query, queryOffset, matrix, dim, rows, out);
+    }
+
+    /**
+     * Scales the vector at offset to unit length (zero vectors are left as they are).
+     */
+    public static void normalize(float[] v, int offset, int dim) {
+        double norm = Math.sqrt(KERNEL.dot(v, offset, v, offset, dim));
+        if (norm == 0.0) return;
+        float inv = (float) (1.0 / norm);
+        for (int i = offset; i < offset + dim; i++) {
+            v[i] *= inv;
+        }
+    }
+
+    private static Kernel selectKernel() {
+        if (!Boolean.parseBoolean(System.getProperty("semanticbm25.simd", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return SCALAR;
+        }
+        try {
+            return (Kernel) Class.forName("org.semanticbm25.SimdKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return SCALAR;
+        }
+    }
+
+    static final class ScalarKernel implements Kernel {
+        @Override
+        public float dot(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;// Four accumulators so the JIT can overlap the multiplications
+            int i = 0;
+            for (; i + 3 < dim; i += 4) {
+                s0 += a[aOffset + i] * b[bOffset + i];
+                s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+                s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+                s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+            }
+            for (; i < dim; i++) {
+                s0 += a[aOffset + i] * b[bOffset + i];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public void dotMany(float[] query, int queryOffset, float[] matrix, int dim, int rows, float[] out) {
+            for (int r = 0; r < rows; r++) {
+                out[r] = dot(query, queryOffset, matrix, r * dim, dim);
+            }
+        }
+    }
+}